@@ -0,0 +1,73 @@
+package bench;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import shared.EncodedMessage;
+import shared.WireFormat;
+import shared.XMLMessageBuilder;
+
+/**
+ * Fan-out of one broadcast to N recipients:
+ * "per-writer"  - the old path, PrintWriter.println per socket, the string is encoded N times;
+ * "encode-once" - EncodedMessage built once, the same bytes written to every socket.
+ * Sockets are replaced by buffered null streams so only the encoding and copying is measured.
+ *
+ *   java bench.BroadcastEncodingBenchmark 2000
+ */
+public class BroadcastEncodingBenchmark {
+    private static final int WARMUP_ROUNDS  = 200;
+    private static final int MEASURE_ROUNDS = 1000;
+
+    public static void main(String[] args) throws IOException {
+        int recipients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        String message = XMLMessageBuilder.buildBroadcastMessage("Lisa",
+                "Привіт усім! Hello everyone 😊 — see you at 10:00 in the <main> room & bring coffee");
+
+        PrintWriter[] writers = new PrintWriter[recipients];
+        OutputStream[] streams = new OutputStream[recipients];
+        for (int i = 0; i < recipients; i++) {
+            writers[i] = new PrintWriter(new OutputStreamWriter(
+                    new BufferedOutputStream(OutputStream.nullOutputStream()), StandardCharsets.UTF_8), true);
+            streams[i] = new BufferedOutputStream(OutputStream.nullOutputStream());
+        }
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            perWriter(writers, message);
+            encodeOnce(streams, message);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            perWriter(writers, message);
+        }
+        long perWriterNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            encodeOnce(streams, message);
+        }
+        long encodeOnceNanos = System.nanoTime() - start;
+
+        System.out.printf("recipients=%d, message=%d chars%n", recipients, message.length());
+        System.out.printf("per-writer:  %8.1f µs per broadcast%n", perWriterNanos / 1000.0 / MEASURE_ROUNDS);
+        System.out.printf("encode-once: %8.1f µs per broadcast%n", encodeOnceNanos / 1000.0 / MEASURE_ROUNDS);
+    }
+
+    private static void perWriter(PrintWriter[] writers, String message) {
+        for (PrintWriter writer : writers) {
+            writer.println(message);
+        }
+    }
+
+    private static void encodeOnce(OutputStream[] streams, String message) throws IOException {
+        EncodedMessage encoded = EncodedMessage.of(message);
+        for (OutputStream stream : streams) {
+            encoded.writeTo(stream, WireFormat.LINE);
+            stream.flush();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Memory cost of idle connections served the way server.ClientHandler does it:
+ * "platform" - one platform thread blocked in readLine (pathtoyou.transport=threads),
+ * "virtual"  - a virtual reader plus a virtual writer parked on its queue
+ *              (pathtoyou.transport=virtual, needs Java 21+).
+ *
+ *   java bench.ConnectionMemoryBenchmark platform 5000
+ *   java bench.ConnectionMemoryBenchmark virtual 50000
+ *
+ * Each connection uses two file descriptors in this process, so check ulimit -n.
+ */
+public class ConnectionMemoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "platform";
+        int count   = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        boolean virtual = "virtual".equalsIgnoreCase(mode);
+
+        Executor executor;
+        if (virtual) {
+            try {
+                executor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (NoSuchMethodException e) {
+                System.err.println("virtual mode needs Java 21+");
+                return;
+            }
+        } else {
+            executor = task -> new Thread(task).start();
+        }
+
+        long heapBefore = usedHeap();
+        long rssBefore  = residentSetSize();
+
+        ServerSocket serverSocket = new ServerSocket(0, count, InetAddress.getLoopbackAddress());
+        CountDownLatch accepted = new CountDownLatch(count);
+        Thread acceptor = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; i++) {
+                    Socket socket = serverSocket.accept();
+                    executor.execute(() -> read(socket));
+                    if (virtual) {
+                        BlockingQueue<String> outbox = new LinkedBlockingQueue<>();
+                        executor.execute(() -> write(outbox));
+                    }
+                    accepted.countDown();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        acceptor.start();
+
+        List<Socket> clients = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            clients.add(new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort()));
+        }
+        accepted.await();
+        Thread.sleep(1000);
+
+        long heapAfter = usedHeap();
+        long rssAfter  = residentSetSize();
+
+        System.out.printf("mode=%s connections=%d live platform threads=%d%n",
+                mode, count, ManagementFactory.getThreadMXBean().getThreadCount());
+        System.out.printf("heap per connection: %.1f KB%n", (heapAfter - heapBefore) / 1024.0 / count);
+        if (rssBefore > 0) {
+            System.out.printf("RSS per connection:  %.1f KB%n", (rssAfter - rssBefore) / 1024.0 / count);
+        }
+        System.exit(0);
+    }
+
+    private static void read(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            while (in.readLine() != null) {
+                // idle connection
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void write(BlockingQueue<String> outbox) {
+        try {
+            outbox.take();
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // resident set size from /proc (Linux only), -1 elsewhere
+    private static long residentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,170 @@
+package bench;
+
+import shared.Message;
+import shared.MessageCodec;
+
+/**
+ * Parsing and building of every message type:
+ * "legacy" - the old XMLMessageBuilder, one indexOf scan per field and chained String.replace;
+ * "codec"  - MessageCodec, one pass over the line and single-pass escaping.
+ * Parsing reads the fields the server reads for that type.
+ *
+ *   java bench.MessageCodecBenchmark
+ */
+public class MessageCodecBenchmark {
+    private static final int WARMUP_ROUNDS  = 200_000;
+    private static final int MEASURE_ROUNDS = 1_000_000;
+
+    private static final String TEXT = "Привіт усім! Hello everyone 😊 — see you at 10:00 in the <main> room & bring coffee";
+    private static final String FILE_DATA = "iVBORw0KGgoAAAANSUhEUgAAAAEAAAABCAYAAAAfFcSJAAAADUlEQVR42mNk+M9QDwADhgGAWjR9awAAAABJRU5ErkJggg==".repeat(40);
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        Message[] messages = {
+                Message.join("Lisa", "😊"),
+                Message.leave("Lisa"),
+                Message.broadcast("Lisa", TEXT),
+                Message.privateMessage("Lisa", "Max", TEXT),
+                Message.hug("Lisa", "Max"),
+                Message.rename("Lisa", "Liz"),
+                Message.mood("Lisa", "🤩"),
+                Message.emotion("Lisa", "Local Chat", "😢"),
+                Message.file("Lisa", "Max", "pixel.png", FILE_DATA)
+        };
+
+        System.out.printf("%-10s %8s %12s %12s %12s %12s%n",
+                "type", "chars", "parse old", "parse new", "build old", "build new");
+        for (Message message : messages) {
+            String xml = message.toXml();
+            int rounds = message.getType() == Message.Type.FILE ? MEASURE_ROUNDS / 20 : MEASURE_ROUNDS;
+
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                sink = legacyParse(xml);
+                sink = MessageCodec.parse(xml).getBody();
+                sink = legacyBuild(message);
+                sink = build(message);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                sink = legacyParse(xml);
+            }
+            double parseOld = (System.nanoTime() - start) / (double) rounds;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                Message parsed = MessageCodec.parse(xml);
+                sink = parsed.getFrom();
+                sink = parsed.getBody();
+            }
+            double parseNew = (System.nanoTime() - start) / (double) rounds;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                sink = legacyBuild(message);
+            }
+            double buildOld = (System.nanoTime() - start) / (double) rounds;
+
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                sink = build(message);
+            }
+            double buildNew = (System.nanoTime() - start) / (double) rounds;
+
+            System.out.printf("%-10s %8d %9.0f ns %9.0f ns %9.0f ns %9.0f ns%n",
+                    message.getTypeName(), xml.length(), parseOld, parseNew, buildOld, buildNew);
+        }
+    }
+
+    // a fresh message from the same factory the application uses, so the cached XML is not reused
+    private static String build(Message m) {
+        switch (m.getType()) {
+            case JOIN:
+                return Message.join(m.getFrom(), m.getMood()).toXml();
+            case LEAVE:
+                return Message.leave(m.getFrom()).toXml();
+            case BROADCAST:
+                return Message.broadcast(m.getFrom(), m.getBody()).toXml();
+            case MOOD:
+                return Message.mood(m.getFrom(), m.getMood()).toXml();
+            case RENAME:
+                return new Message(Message.Type.RENAME).set(Message.Field.FROM, m.getFrom())
+                        .set(Message.Field.BODY, m.getBody()).toXml();
+            case FILE:
+                return Message.file(m.getFrom(), m.getTo(), m.getFileName(), m.getFileData()).toXml();
+            default:
+                return new Message(m.getType()).set(Message.Field.FROM, m.getFrom()).set(Message.Field.TO, m.getTo())
+                        .set(Message.Field.BODY, m.getBody()).toXml();
+        }
+    }
+
+    private static String legacyParse(String xml) {
+        String type = legacyAttribute(xml, "type");
+        String from = legacyTag(xml, "from");
+        String to   = legacyTag(xml, "to");
+        String body = legacyTag(xml, "body");
+        String mood = legacyTag(xml, "mood");
+        if ("file".equals(type)) {
+            return legacyTag(xml, "filename") + legacyTag(xml, "filedata").length();
+        }
+        return type + from + to + body + mood;
+    }
+
+    private static String legacyBuild(Message m) {
+        switch (m.getType()) {
+            case JOIN:
+                return "<message type=\"join\"><from>" + legacyEscape(m.getFrom()) + "</from><mood>" + legacyEscape(m.getMood()) + "</mood></message>";
+            case LEAVE:
+                return "<message type=\"leave\"><from>" + legacyEscape(m.getFrom()) + "</from></message>";
+            case BROADCAST:
+                return "<message type=\"broadcast\"><from>" + legacyEscape(m.getFrom()) + "</from><body>" + legacyEscape(m.getBody()) + "</body></message>";
+            case MOOD:
+                return "<message type=\"mood\"><from>" + legacyEscape(m.getFrom()) + "</from><mood>" + legacyEscape(m.getMood()) + "</mood></message>";
+            case RENAME:
+                return "<message type=\"rename\"><from>" + legacyEscape(m.getFrom()) + "</from><body>" + legacyEscape(m.getBody()) + "</body></message>";
+            case FILE:
+                return "<message type=\"file\">" +
+                        "<from>" + legacyEscape(m.getFrom()) + "</from>" +
+                        "<to>" + legacyEscape(m.getTo()) + "</to>" +
+                        "<filename>" + legacyEscape(m.getFileName()) + "</filename>" +
+                        "<filedata>" + legacyEscape(m.getFileData()) + "</filedata>" +
+                        "</message>";
+            default:
+                return "<message type=\"" + m.getTypeName() + "\"><from>" + legacyEscape(m.getFrom()) + "</from><to>"
+                        + legacyEscape(m.getTo()) + "</to><body>" + legacyEscape(m.getBody()) + "</body></message>";
+        }
+    }
+
+    private static String legacyAttribute(String xml, String attribute) {
+        String start = attribute + "=\"";
+        int startIndex = xml.indexOf(start);
+        if (startIndex >= 0) {
+            int valueStart = startIndex + start.length();
+            int valueEnd = xml.indexOf("\"", valueStart);
+            if (valueEnd > valueStart) {
+                return xml.substring(valueStart, valueEnd);
+            }
+        }
+        return "";
+    }
+
+    private static String legacyTag(String xml, String tag) {
+        String startTag = "<" + tag + ">";
+        String endTag = "</" + tag + ">";
+        int start = xml.indexOf(startTag);
+        int end = xml.indexOf(endTag);
+        if (start >= 0 && end > start) {
+            return legacyUnescape(xml.substring(start + startTag.length(), end));
+        }
+        return "";
+    }
+
+    private static String legacyEscape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String legacyUnescape(String text) {
+        return text.replace("&amp;", "&").replace("&lt;", "<").replace("&gt;", ">");
+    }
+}
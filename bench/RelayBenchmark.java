@@ -0,0 +1,98 @@
+package bench;
+
+import com.sun.management.ThreadMXBean;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import shared.EncodedMessage;
+import shared.Message;
+import shared.MessageCodec;
+import shared.MessageReader;
+import shared.WireFormat;
+import shared.XMLMessageBuilder;
+
+/**
+ * Server-side cost of relaying one received file message, from the bytes read
+ * off the socket to the bytes written to recipients:
+ * "decode"   - the old path, the line is decoded to a String, the file data is
+ *              unescaped to check it, and the String is encoded again for sending;
+ * "envelope" - MessageReader + EncodedMessage, only the routing header is read
+ *              and the received bytes are sent as they are.
+ *
+ *   java bench.RelayBenchmark 4
+ */
+public class RelayBenchmark {
+    private static final int WARMUP_ROUNDS  = 20;
+    private static final int MEASURE_ROUNDS = 50;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws IOException {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        String fileData = "QUJD".repeat(megabytes * 1024 * 1024 / 4);
+        byte[] received = (XMLMessageBuilder.buildFileMessage("Lisa", "Local Chat", "photo.jpg", fileData) + "\n")
+                .getBytes(StandardCharsets.UTF_8);
+
+        // one reader for the whole run, like one connection; its line buffer grows once
+        MessageReader reader = new MessageReader(new InputStream() {
+            private int pos;
+
+            @Override
+            public int read() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                int n = Math.min(len, received.length - pos);
+                System.arraycopy(received, pos, b, off, n);
+                pos = (pos + n) % received.length;
+                return n;
+            }
+        });
+
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            decode(received);
+            envelope(reader);
+        }
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+
+        long bytes = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            decode(received);
+        }
+        long decodeNanos = System.nanoTime() - start;
+        long decodeBytes = threads.getThreadAllocatedBytes(id) - bytes;
+
+        bytes = threads.getThreadAllocatedBytes(id);
+        start = System.nanoTime();
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            envelope(reader);
+        }
+        long envelopeNanos = System.nanoTime() - start;
+        long envelopeBytes = threads.getThreadAllocatedBytes(id) - bytes;
+
+        System.out.printf("file message: %.1f MB%n", received.length / 1048576.0);
+        System.out.printf("decode:   %8.2f ms, %6.1f MB allocated per relay%n",
+                decodeNanos / 1e6 / MEASURE_ROUNDS, decodeBytes / 1048576.0 / MEASURE_ROUNDS);
+        System.out.printf("envelope: %8.2f ms, %6.1f MB allocated per relay%n",
+                envelopeNanos / 1e6 / MEASURE_ROUNDS, envelopeBytes / 1048576.0 / MEASURE_ROUNDS);
+    }
+
+    private static void decode(byte[] received) {
+        String line = new String(received, 0, received.length - 1, StandardCharsets.UTF_8);
+        Message message = MessageCodec.parse(line);
+        sink = message.getFileData();
+        sink = (message.toXml() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void envelope(MessageReader reader) throws IOException {
+        Message message = reader.readMessage();
+        sink = message.getTo();
+        sink = EncodedMessage.of(message).buffer(WireFormat.LINE);
+    }
+}
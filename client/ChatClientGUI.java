@@ -2,59 +2,131 @@ package client;
 
 import javax.swing.*;
 import javax.swing.border.LineBorder;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.plaf.basic.BasicSplitPaneUI;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
-import java.nio.file.Files;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-import javax.swing.border.Border;
-import shared.XMLMessageBuilder;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+import shared.EncodedMessage;
+import shared.Message;
+import shared.MessageReader;
+import shared.PresenceChange;
+import shared.WireFormat;
 
 
 public class ChatClientGUI {
 
-    private static class MessageEntry {
-        String text;     
-        String time;   
+    /** File transfer messages, handed to the transfer threads without waiting for the EDT. */
+    private static final Set<Message.Type> TRANSFER_TYPES = EnumSet.of(
+            Message.Type.FILE, Message.Type.FILE_START, Message.Type.FILE_CHUNK, Message.Type.FILE_END,
+            Message.Type.FILE_ACK, Message.Type.FILE_RESUME, Message.Type.FILE_NACK);
 
-        MessageEntry(String text, String time) {
-            this.text = text;
-            this.time = time;
+    /** Pause in typing after which the search suggestions are updated. */
+    private static final int SEARCH_DELAY_MS = 150;
+    private static final int SEARCH_SUGGESTIONS = 8;
+
+    /** How long the EDT handles queued messages before it lets Swing paint: half a 60 Hz frame. */
+    private static final long BATCH_NANOS = 8_000_000;
+
+    /** Messages from the UI that may wait for the socket; sending more is refused until half of them are written. */
+    private static final int OUTBOX_CAPACITY = 100;
+    /** Messages from other threads, i.e. file transfers, that may wait at once; those threads wait for room. */
+    private static final int BACKGROUND_SLOTS = 16;
+    private static final Outgoing CLOSE = new Outgoing(null, false);
+
+    private static class Outgoing {
+        final EncodedMessage message;
+        final boolean fromUi;
+
+        Outgoing(EncodedMessage message, boolean fromUi) {
+            this.message = message;
+            this.fromUi  = fromUi;
+        }
+    }
+
+    private static class PendingEntry {
+        final String chatName;
+        final MessageEntry entry;
+
+        PendingEntry(String chatName, MessageEntry entry) {
+            this.chatName = chatName;
+            this.entry    = entry;
         }
     }
 
     private String userName;
     private String mood = "😊";
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private OutputStream out;
+    private MessageReader in;
+    private volatile WireFormat format = WireFormat.LINE;
+
+    // written to the socket by the writer thread only, so the EDT never waits for the server
+    private final BlockingQueue<Outgoing> outbox = new LinkedBlockingQueue<>();
+    private final AtomicInteger queuedFromUi = new AtomicInteger();
+    private final Semaphore backgroundSlots = new Semaphore(BACKGROUND_SLOTS);
+    private volatile boolean closed;
+    private Thread writer;
+    // EDT only: whether the outbox filled up and sending is refused; own messages not echoed back yet, oldest first
+    private boolean outboxFull;
+    private final Deque<PendingEntry> sending = new ArrayDeque<>();
+    private final TransferPanel transferPanel = new TransferPanel();
+    private final FileTransfers transfers = new FileTransfers(this, transferPanel);
+    private final Thumbnails thumbnails = new Thumbnails();
+
+    // read from the server or added by other threads, waiting for the EDT
+    private final Queue<Message> incoming = new ConcurrentLinkedQueue<>();
+    private final Queue<PendingEntry> pendingEntries = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    // EDT only: histories with entries the list has not been told about yet
+    private final Set<ChatHistory> changedHistories = new HashSet<>();
+    private boolean draining;
 
     private String currentChat = "Local Chat";
 
-    private Map<String, java.util.List<MessageEntry>> chatMessages = new HashMap<>();
+    private Map<String, ChatHistory> chatMessages = new HashMap<>();
+    /** Where the histories keep their older messages; deleted when the client exits. */
+    private final java.nio.file.Path historyDir;
+    private int historyFiles;
 
-    private Map<String, String> userMoods = new HashMap<>();
+    private final FriendList friends = new FriendList();
+    // EDT only: version of the roster the friend list shows, -1 before the first; whether a new one was asked for
+    private long presenceVersion = -1;
+    private boolean resyncing;
 
     private JFrame frame;
     private JLabel headerLabel;
     private JLabel dateLabel;
-    private JPanel messagePanel;
+    private JList<MessageEntry> messageList;
     private JScrollPane scrollPane;
     private JButton attachButton;
     private JTextField inputField;
     private JButton sendButton;
     private JTextField searchField;
+    private JPopupMenu searchPopup;
+    private javax.swing.Timer searchTimer;
     private JPanel friendPanel;
+    private JList<Friend> friendList;
     private JScrollPane friendScroll;
     private JPanel profilePanel;
     private JLabel profileLabel;
     private JPopupMenu profileMenu;
-    private Map<String, JPanel> userPanels = new HashMap<>();
     private static final DateTimeFormatter DATE_FORMAT =
             DateTimeFormatter.ofPattern("dd MMMM yyyy, EEEE", Locale.ENGLISH);
     private static final DateTimeFormatter TIME_FORMAT =
@@ -62,37 +134,69 @@ public class ChatClientGUI {
 
 
     public ChatClientGUI(String host, int port, String userName) throws IOException {
+        this(host, port, userName, millis -> { });
+    }
+
+    /**
+     * Connects and joins, then shows the chat window. The server may make the
+     * join wait for its turn; {@code onWait} then hears how many milliseconds
+     * it expects that to take. Called off the EDT, the waiting does not hold
+     * up the UI, and the window is still built on the EDT.
+     */
+    public ChatClientGUI(String host, int port, String userName, LongConsumer onWait) throws IOException {
         this.userName = userName.trim();
+        this.historyDir = java.nio.file.Files.createTempDirectory("pathtoyou-history-");
+        historyDir.toFile().deleteOnExit();
 
         this.socket = new Socket(host, port);
-        this.out    = new PrintWriter(socket.getOutputStream(), true);
-        this.in     = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.out    = new BufferedOutputStream(socket.getOutputStream());
+        this.in     = new MessageReader(socket.getInputStream());
+        this.writer = new Thread(this::writeLoop, "chat-writer");
+        writer.setDaemon(true);
+        writer.start();
 
-        String joinXml = XMLMessageBuilder.buildJoinMessage(this.userName, this.mood);
-        out.println(joinXml);
+        send(Message.joinWithFrames(this.userName, this.mood)
+                .accepting(Message.Type.ROSTER, Message.Type.PRESENCE, Message.Type.WAIT));
 
-        String firstResponse = in.readLine();
+        Message firstResponse = in.readMessage();
+        while (firstResponse != null && firstResponse.getType() == Message.Type.WAIT) {
+            try {
+                onWait.accept(Long.parseLong(firstResponse.getBody()));
+            } catch (NumberFormatException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+            firstResponse = in.readMessage();
+        }
+        if (firstResponse != null && firstResponse.getType() == Message.Type.FRAMES) {
+            // the server accepted the join and speaks binary frames from here on
+            format = WireFormat.FRAME;
+            in.setFormat(WireFormat.FRAME);
+            firstResponse = null;
+        }
         if (firstResponse != null) {
-            String firstType = XMLMessageBuilder.parseType(firstResponse);
-            if ("error".equalsIgnoreCase(firstType)) {
-                String body = XMLMessageBuilder.parseBody(firstResponse);
+            if (firstResponse.getType() == Message.Type.ERROR) {
+                String body = firstResponse.getBody();
                 JOptionPane.showMessageDialog(
                         null,
                         "Connection failed: " + body,
                         "Error",
                         JOptionPane.ERROR_MESSAGE);
+                closeOutbox();
                 socket.close();
                 throw new IOException("Server error: " + body);
             }
         }
 
-        initGUI();
-        chatMessages.put("Local Chat", new ArrayList<>());
-        if (firstResponse != null) {
-            XMLMessageParser.parseMessage(firstResponse, this);
-        }
+        Message joined = firstResponse;
+        onEdt(() -> {
+            initGUI();
+            history("Local Chat");
+            if (joined != null) {
+                XMLMessageParser.parseMessage(joined, this);
+            }
 
-        new Thread(this::listenFromServer).start();
+            new Thread(this::listenFromServer).start();
+        });
     }
 
     private void initGUI() {
@@ -134,13 +238,22 @@ public class ChatClientGUI {
         containerTop.add(dateLabel, BorderLayout.SOUTH);
         leftMain.add(containerTop, BorderLayout.NORTH);
 
-        messagePanel = new JPanel();
-        messagePanel.setBackground(Color.WHITE);
-        messagePanel.setLayout(new BoxLayout(messagePanel, BoxLayout.Y_AXIS));
-        scrollPane = new JScrollPane(messagePanel,
+        messageList = new JList<>();
+        messageList.setBackground(Color.WHITE);
+        messageList.setFocusable(false);
+        messageList.setCellRenderer(new MessageRenderer(thumbnails, entry -> history(currentChat).changed(entry)));
+        scrollPane = new JScrollPane(messageList,
                 JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
                 JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
         scrollPane.setBorder(null);
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
+            JScrollBar bar = (JScrollBar) e.getAdjustable();
+            if (bar.getValue() == bar.getMinimum() && bar.getMaximum() > bar.getVisibleAmount()) {
+                loadOlderMessages();
+            } else if (isAtEnd()) {
+                history(currentChat).trim();
+            }
+        });
         leftMain.add(scrollPane, BorderLayout.CENTER);
 
         JPanel inputPanel = new JPanel(new BorderLayout());
@@ -170,7 +283,10 @@ public class ChatClientGUI {
         sendButton.addActionListener(e -> sendMessage());
         inputPanel.add(sendButton, BorderLayout.EAST);
 
-        leftMain.add(inputPanel, BorderLayout.SOUTH);
+        JPanel bottomPanel = new JPanel(new BorderLayout());
+        bottomPanel.add(transferPanel, BorderLayout.NORTH);
+        bottomPanel.add(inputPanel, BorderLayout.SOUTH);
+        leftMain.add(bottomPanel, BorderLayout.SOUTH);
 
         JPanel rightMain = new JPanel(new BorderLayout());
         rightMain.setPreferredSize(new Dimension(250, 0));
@@ -196,32 +312,75 @@ public class ChatClientGUI {
         BorderFactory.createEmptyBorder(10, 10, 10, 10)
         ));
         searchField.addActionListener(e -> {
+            searchTimer.stop();
+            searchPopup.setVisible(false);
             String text = searchField.getText().trim();
             if (!text.isEmpty()) {
                 searchUserAndOpenChat(text);
             }
         });
+
+        searchPopup = new JPopupMenu();
+        searchPopup.setFocusable(false);
+        searchTimer = new javax.swing.Timer(SEARCH_DELAY_MS, e -> showSuggestions());
+        searchTimer.setRepeats(false);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                searchTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
         searchContainer.add(searchField, BorderLayout.CENTER);
 
         rightMain.add(searchContainer, BorderLayout.NORTH);
 
-        friendPanel = new JPanel();
-        friendPanel.setLayout(new BoxLayout(friendPanel, BoxLayout.Y_AXIS));
-        friendPanel.setBackground(Color.WHITE);  
+        friendPanel = new JPanel(new BorderLayout(0, 5));
+        friendPanel.setBackground(Color.WHITE);
+
+        friendList = new JList<>(friends);
+        friendList.setBackground(Color.WHITE);
+        friendList.setFocusable(false);
+        friendList.setFixedCellHeight(FriendRenderer.ROW_HEIGHT);
+        friendList.setCellRenderer(new FriendRenderer());
+        friendList.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+        friendList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int i = friendList.locationToIndex(e.getPoint());
+                if (i < 0 || !friendList.getCellBounds(i, i).contains(e.getPoint())) {
+                    return;
+                }
+                String name = friends.getElementAt(i).name;
+                if (FriendRenderer.isHug(e.getX(), friendList.getWidth())) {
+                    sendHug(name);
+                } else {
+                    switchChat(name);
+                }
+            }
+        });
 
-        friendScroll = new JScrollPane(friendPanel,
+        friendScroll = new JScrollPane(friendList,
                 JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
                 JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
-
+        friendScroll.setBorder(BorderFactory.createEmptyBorder());
         friendScroll.getViewport().setBackground(Color.WHITE);
 
-        rightMain.add(friendScroll, BorderLayout.CENTER);
+        friendPanel.add(friendScroll, BorderLayout.CENTER);
+        rightMain.add(friendPanel, BorderLayout.CENTER);
 
         {
             JPanel lcPanel = new JPanel(new BorderLayout());
             lcPanel.setBackground(Color.WHITE);
             lcPanel.setPreferredSize(new Dimension(0, 25));
-            lcPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 25));
             lcPanel.setBorder(BorderFactory.createLineBorder(new Color(36, 73, 125), 2, true));
 
             JLabel lcLabel = new JLabel("Local Chat", SwingConstants.CENTER);
@@ -238,8 +397,7 @@ public class ChatClientGUI {
             });
 
             lcPanel.add(lcLabel, BorderLayout.CENTER);
-            friendPanel.add(lcPanel);
-            friendPanel.add(Box.createVerticalStrut(5));
+            friendPanel.add(lcPanel, BorderLayout.NORTH);
         }
 
         profilePanel = new JPanel(new BorderLayout());
@@ -260,7 +418,8 @@ public class ChatClientGUI {
         renameItem.addActionListener(e -> changeName());
         changeMoodItem.addActionListener(e -> setMood());
         exitItem.addActionListener(e -> {
-            out.println(XMLMessageBuilder.buildLeaveMessage(userName));
+            send(Message.leave(userName));
+            closeOutbox();
             System.exit(0);
         });
         profileMenu.add(renameItem);
@@ -300,12 +459,15 @@ public class ChatClientGUI {
         JPopupMenu menu = new JPopupMenu();
         JMenuItem reactionItem = new JMenuItem("Send Reaction");
         JMenuItem fileItem     = new JMenuItem("Send File");
+        JMenuItem sharedItem   = new JMenuItem("Download Shared File");
 
         reactionItem.addActionListener(e -> showReactionDialog());
         fileItem.addActionListener(e -> sendFile());
+        sharedItem.addActionListener(e -> showSharedFilesDialog());
 
         menu.add(reactionItem);
         menu.add(fileItem);
+        menu.add(sharedItem);
         menu.show(attachButton, 0, attachButton.getHeight());
     }
 
@@ -325,36 +487,41 @@ public class ChatClientGUI {
         }
     }
 
+    private void showSharedFilesDialog() {
+        java.util.List<String> files = transfers.sharedFiles();
+        if (files.isEmpty()) {
+            JOptionPane.showMessageDialog(frame, "Nobody has shared a file yet.", "Shared Files", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        String selected = (String) JOptionPane.showInputDialog(
+                frame,
+                "Choose a file to download:",
+                "Shared Files",
+                JOptionPane.PLAIN_MESSAGE,
+                null,
+                files.toArray(),
+                files.get(files.size() - 1)
+        );
+        if (selected != null) {
+            transfers.fetch(selected);
+        }
+    }
+
     private void sendEmotionToCurrentChat(String emoji) {
-        String xml;
+        Message message;
         if ("Local Chat".equalsIgnoreCase(currentChat)) {
-            xml = XMLMessageBuilder.buildEmotionMessage(userName, "Local Chat", emoji);
+            message = Message.emotion(userName, "Local Chat", emoji);
         } else {
-            xml = XMLMessageBuilder.buildEmotionMessage(userName, currentChat, emoji);
+            message = Message.emotion(userName, currentChat, emoji);
         }
-        out.println(xml);
+        send(message);
     }
 
     private void sendFile() {
         JFileChooser chooser = new JFileChooser();
         int res = chooser.showOpenDialog(frame);
         if (res == JFileChooser.APPROVE_OPTION) {
-            File file = chooser.getSelectedFile();
-            try {
-                byte[] content = Files.readAllBytes(file.toPath());
-                String encoded = Base64.getEncoder().encodeToString(content);
-                String fileName = file.getName();
-
-                String xml;
-                if ("Local Chat".equalsIgnoreCase(currentChat)) {
-                    xml = XMLMessageBuilder.buildFileMessage(userName, "Local Chat", fileName, encoded);
-                } else {
-                    xml = XMLMessageBuilder.buildFileMessage(userName, currentChat, fileName, encoded);
-                }
-                out.println(xml);
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(frame, "Error reading file", "Error", JOptionPane.ERROR_MESSAGE);
-            }
+            transfers.send(chooser.getSelectedFile(), currentChat);
         }
     }
 
@@ -362,35 +529,188 @@ public class ChatClientGUI {
         String text = inputField.getText().trim();
         if (text.isEmpty()) return;
 
-        String xml;
+        Message message;
+        String shown;
         if ("Local Chat".equalsIgnoreCase(currentChat)) {
-            xml = XMLMessageBuilder.buildBroadcastMessage(userName, text);
+            message = Message.broadcast(userName, text);
+            shown   = "💬 " + userName + ": " + text;
         } else {
-            xml = XMLMessageBuilder.buildPrivateMessage(userName, currentChat, text);
+            message = Message.privateMessage(userName, currentChat, text);
+            shown   = "🔒 You ➡ " + currentChat + ": " + text;
+        }
+        if (!send(message)) {
+            return;
         }
-        out.println(xml);
         inputField.setText("");
+        // shown right away; the server's echo of it only fills in the time
+        MessageEntry entry = new MessageEntry(shown, "sending…");
+        sending.add(new PendingEntry(currentChat, entry));
+        addMessage(currentChat, entry);
+    }
+
+    /**
+     * Queues a message for the writer thread. On the EDT this never blocks:
+     * when {@link #OUTBOX_CAPACITY} messages are still waiting it refuses,
+     * beeps and returns false, and the send button shows the server is not
+     * keeping up. Other threads wait for room instead. Returns false as
+     * well once the connection is closed.
+     */
+    boolean send(Message message) {
+        boolean fromUi = SwingUtilities.isEventDispatchThread();
+        if (fromUi) {
+            if (closed || outboxFull) {
+                Toolkit.getDefaultToolkit().beep();
+                return false;
+            }
+            if (queuedFromUi.incrementAndGet() >= OUTBOX_CAPACITY) {
+                outboxFull = true;
+                updateSendState();
+            }
+        } else {
+            try {
+                while (!backgroundSlots.tryAcquire(1, TimeUnit.SECONDS)) {
+                    if (closed) {
+                        return false;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        Outgoing outgoing = new Outgoing(EncodedMessage.of(message), fromUi);
+        outbox.add(outgoing);
+        // the writer may have stopped and drained the outbox in between
+        if (closed && outbox.remove(outgoing)) {
+            written(outgoing);
+            return false;
+        }
+        return true;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Outgoing next = outbox.take();
+                if (next == CLOSE) {
+                    break;
+                }
+                try {
+                    next.message.writeTo(out, format);
+                } finally {
+                    written(next);
+                }
+                if (outbox.isEmpty()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+            Outgoing left;
+            while ((left = outbox.poll()) != null) {
+                if (left != CLOSE) {
+                    written(left);
+                }
+            }
+            SwingUtilities.invokeLater(this::markUnsent);
+        }
+    }
+
+    private void written(Outgoing outgoing) {
+        if (!outgoing.fromUi) {
+            backgroundSlots.release();
+        } else if (queuedFromUi.decrementAndGet() == OUTBOX_CAPACITY / 2) {
+            SwingUtilities.invokeLater(() -> {
+                outboxFull = queuedFromUi.get() >= OUTBOX_CAPACITY;
+                updateSendState();
+            });
+        }
+    }
+
+    /** Lets the writer finish what is queued, then stops it; waits a little for that, as on exit. */
+    private void closeOutbox() {
+        outbox.add(CLOSE);
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void updateSendState() {
+        if (sendButton == null) {
+            return;
+        }
+        sendButton.setEnabled(!outboxFull);
+        sendButton.setText(outboxFull ? "⏳" : "▶");
+        sendButton.setToolTipText(outboxFull ? "Waiting for the server to take the messages already sent" : null);
+    }
+
+    /** The connection is gone: own messages still waiting for their echo never got through. */
+    private void markUnsent() {
+        for (PendingEntry pending : sending) {
+            pending.entry.time = "❌ not sent";
+            history(pending.chatName).changed(pending.entry);
+        }
+        sending.clear();
+    }
+
+    /**
+     * One of this user's own messages, echoed back by the server: fills in
+     * the time of the one shown while sending. The server echoes messages in
+     * the order they were sent, so the echo is that of the oldest one still
+     * waiting, even when several say the same.
+     */
+    public void addOwnMessage(String chatName, String msg) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            PendingEntry pending = sending.poll();
+            if (pending != null) {
+                pending.entry.time = LocalDateTime.now().format(TIME_FORMAT);
+                history(pending.chatName).changed(pending.entry);
+                return;
+            }
+        }
+        addMessage(chatName, msg);
     }
 
     private void listenFromServer() {
-        String line;
+        Message message;
         try {
-            while ((line = in.readLine()) != null) {
-                XMLMessageParser.parseMessage(line, this);
+            while ((message = in.readMessage()) != null) {
+                if (TRANSFER_TYPES.contains(message.getType())) {
+                    XMLMessageParser.parseMessage(message, this);
+                } else {
+                    incoming.add(message);
+                    scheduleDrain();
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
             addMessage("Local Chat", "❌ Disconnected from server");
+        } finally {
+            outbox.add(CLOSE);
+            transfers.close();
         }
     }
 
     public void switchChat(String chatName) {
+        history(currentChat).trim();
         this.currentChat = chatName;
 
         if ("Local Chat".equalsIgnoreCase(chatName)) {
             headerLabel.setText("Local Chat");
         } else {
-            String emo = userMoods.getOrDefault(chatName, "😊");
+            String emo = friends.mood(chatName);
             headerLabel.setText(chatName + " " + emo);
         }
 
@@ -398,213 +718,264 @@ public class ChatClientGUI {
     }
 
     private void showHistoryForCurrentChat() {
-        messagePanel.removeAll();
-
         dateLabel.setText(LocalDate.now().format(DATE_FORMAT));
 
-        java.util.List<MessageEntry> history =
-                chatMessages.getOrDefault(currentChat, Collections.emptyList());
-        for (MessageEntry entry : history) {
-            String html = "<html><body style='font-family:Segoe UI; font-size:12px;'>"
-                        + entry.text
-                        + "<br><span style='font-size:10px; color:gray; white-space:nowrap;'>"
-                        + entry.time
-                        + "</span></body></html>";
-            JLabel lbl = new JLabel(html);
-            lbl.setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
-            messagePanel.add(lbl);
-        }
-        messagePanel.revalidate();
-        messagePanel.repaint();
+        messageList.setModel(history(currentChat));
+        scrollToEnd();
+    }
+
+    private ChatHistory history(String chatName) {
+        return chatMessages.computeIfAbsent(chatName,
+                k -> new ChatHistory(historyDir.resolve("chat-" + (++historyFiles))));
+    }
+
+    /** Scrolled to the top: puts the page of messages before it in front, keeping the view where it is. */
+    private void loadOlderMessages() {
+        int loaded = history(currentChat).loadOlder();
+        if (loaded > 0) {
+            int height = messageList.getCellBounds(0, loaded - 1).height;
+            JScrollBar bar = scrollPane.getVerticalScrollBar();
+            SwingUtilities.invokeLater(() -> bar.setValue(bar.getValue() + height));
+        }
+    }
+
+    private boolean isAtEnd() {
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+    }
+
+    private void scrollToEnd() {
         SwingUtilities.invokeLater(() -> {
-            JScrollBar vertical = scrollPane.getVerticalScrollBar();
-            vertical.setValue(vertical.getMaximum());
+            int last = messageList.getModel().getSize() - 1;
+            if (last >= 0) {
+                messageList.ensureIndexIsVisible(last);
+            }
         });
     }
 
     public void addMessage(String chatName, String msg) {
-        dateLabel.setText(LocalDate.now().format(DATE_FORMAT));
+        addMessage(chatName, new MessageEntry(msg, LocalDateTime.now().format(TIME_FORMAT)));
+    }
+
+    /** A message about a file sent or received; images get a preview. */
+    public void addFileMessage(String chatName, String msg, java.nio.file.Path file) {
         String time = LocalDateTime.now().format(TIME_FORMAT);
+        if (Thumbnails.isImage(file)) {
+            thumbnails.forget(file);
+            addMessage(chatName, new MessageEntry(msg, time, file));
+        } else {
+            addMessage(chatName, new MessageEntry(msg, time));
+        }
+    }
 
-        chatMessages
-                .computeIfAbsent(chatName, k -> new ArrayList<>())
-                .add(new MessageEntry(msg, time));
-
-        if (chatName.equalsIgnoreCase(currentChat)) {
-            String html = "<html><body style='font-family:Segoe UI; font-size:12px;'>"
-                        + msg
-                        + "<br><span style='font-size:10px; color:gray; white-space:nowrap;'>"
-                        + time
-                        + "</span></body></html>";
-            JLabel lbl = new JLabel(html);
-            lbl.setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
-            messagePanel.add(lbl);
-            messagePanel.revalidate();
-            messagePanel.repaint();
-            SwingUtilities.invokeLater(() -> {
-                JScrollBar vertical = scrollPane.getVerticalScrollBar();
-                vertical.setValue(vertical.getMaximum());
+    private void addMessage(String chatName, MessageEntry entry) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            pendingEntries.add(new PendingEntry(chatName, entry));
+            scheduleDrain();
+            return;
+        }
+        ChatHistory history = history(chatName);
+        history.add(entry);
+        changedHistories.add(history);
+        if (!draining) {
+            flushHistories();
+        }
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::drain);
+        }
+    }
+
+    /**
+     * Handles what is waiting for the EDT for up to {@link #BATCH_NANOS},
+     * then updates the message list once for all of it; the rest waits for
+     * the next round, after Swing has painted.
+     */
+    private void drain() {
+        drainScheduled.set(false);
+        long deadline = System.nanoTime() + BATCH_NANOS;
+        draining = true;
+        try {
+            PendingEntry pending;
+            while ((pending = pendingEntries.poll()) != null) {
+                addMessage(pending.chatName, pending.entry);
+            }
+            Message message;
+            while (System.nanoTime() < deadline && (message = incoming.poll()) != null) {
+                XMLMessageParser.parseMessage(message, this);
+            }
+        } finally {
+            draining = false;
+            flushHistories();
+        }
+        if (!incoming.isEmpty() || !pendingEntries.isEmpty()) {
+            scheduleDrain();
+        }
+    }
+
+    private void flushHistories() {
+        if (changedHistories.isEmpty()) {
+            return;
+        }
+        dateLabel.setText(LocalDate.now().format(DATE_FORMAT));
+        ChatHistory current = history(currentChat);
+        boolean scroll = false;
+        for (ChatHistory history : changedHistories) {
+            scroll |= history.flush() && history == current;
+            if (history != current) {
+                history.trim();
+            }
+        }
+        changedHistories.clear();
+        if (scroll) {
+            scrollToEnd();
+        }
+    }
+
+    /** Lists the users whose names start with what is typed in the search field under it. */
+    private void showSuggestions() {
+        String text = searchField.getText().trim();
+        List<String> names = text.isEmpty()
+                ? Collections.emptyList()
+                : friends.withPrefix(text, SEARCH_SUGGESTIONS);
+        searchPopup.removeAll();
+        if (names.isEmpty()) {
+            searchPopup.setVisible(false);
+            return;
+        }
+        for (String name : names) {
+            JMenuItem item = new JMenuItem(name + " " + friends.mood(name));
+            item.addActionListener(e -> {
+                searchField.setText("");
+                searchTimer.stop();
+                searchUserAndOpenChat(name);
             });
+            searchPopup.add(item);
+        }
+        if (searchPopup.isVisible()) {
+            searchPopup.pack();
+        } else {
+            searchPopup.show(searchField, 0, searchField.getHeight());
         }
     }
 
     private void searchUserAndOpenChat(String toUser) {
-        boolean found = false;
-        for (String other : userPanels.keySet()) {
-            if (other.equalsIgnoreCase(toUser)) {
-                switchChat(other);
-                found = true;
-                break;
-            }
+        String found = friends.find(toUser);
+        if (found == null) {
+            List<String> matches = friends.withPrefix(toUser, 1);
+            found = matches.isEmpty() ? null : matches.get(0);
         }
-        if (!found) {
+        if (found != null) {
+            switchChat(found);
+        } else {
             JOptionPane.showMessageDialog(frame, "User \"" + toUser + "\" not found.", "Search", JOptionPane.INFORMATION_MESSAGE);
         }
     }
 
     public void addUser(String name) {
-        SwingUtilities.invokeLater(() -> {
-            for (String existing : userPanels.keySet()) {
-                if (existing.equalsIgnoreCase(name)) {
-                    return;
-                }
+        onEdt(() -> friends.add(name, FriendList.DEFAULT_MOOD));
+    }
+
+    /** Everyone online as of presence {@code version}, sent at join and when the client asked for it again. */
+    public void setRoster(long version, Map<String, String> moods) {
+        onEdt(() -> {
+            moods.keySet().removeIf(name -> name.equalsIgnoreCase(userName));
+            friends.setAll(moods);
+            presenceVersion = version;
+            resyncing = false;
+        });
+    }
+
+    /**
+     * Applies the presence changes that take the roster to {@code version}.
+     * Deltas from before the roster are already in it; when one is missing
+     * the roster is asked for again and deltas are skipped until it comes.
+     */
+    public void applyPresence(long version, List<PresenceChange> changes) {
+        onEdt(() -> {
+            if (presenceVersion < 0 || resyncing || version <= presenceVersion) {
+                return;
             }
-            JPanel panel = new JPanel(new BorderLayout());
-            panel.setBackground(new Color(173, 216, 230));  
-            panel.setPreferredSize(new Dimension(0, 50));
-            panel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 50));
-            panel.setBorder(BorderFactory.createLineBorder(new Color(200, 200, 200)));
-
-            String displayMood = userMoods.getOrDefault(name, "😊");
-            JLabel nameLabel = new JLabel(name + " " + displayMood, SwingConstants.LEFT);
-            nameLabel.setFont(new Font("Segoe UI", Font.BOLD, 20));
-            nameLabel.setForeground(new Color(36, 73, 125));
-            nameLabel.setOpaque(false);
-            nameLabel.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
-            nameLabel.addMouseListener(new MouseAdapter() {
-                @Override
-                public void mouseClicked(MouseEvent e) {
-                    switchChat(name);
+            if (version != presenceVersion + 1) {
+                resyncing = send(Message.rosterRequest());
+                return;
+            }
+            presenceVersion = version;
+            for (PresenceChange change : changes) {
+                applyPresence(change);
+            }
+        });
+    }
+
+    private void applyPresence(PresenceChange change) {
+        String name = change.getName();
+        switch (change.getKind()) {
+            case ONLINE:
+                if (name.equalsIgnoreCase(userName)) {
+                    break;
                 }
-            });
-            nameLabel.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 0));
-
-            JLabel hugIcon = new JLabel("Send a hug", SwingConstants.CENTER);
-            hugIcon.setFont(new Font("Segoe UI", Font.PLAIN, 12));
-            hugIcon.setForeground(new Color(36, 73, 125));  
-            hugIcon.setOpaque(true);
-            hugIcon.setBackground(new Color(173, 216, 230)); 
-            hugIcon.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
-
-            Border line = BorderFactory.createLineBorder(new Color(36, 73, 125), 1); 
-            Border padding = BorderFactory.createEmptyBorder(5, 15, 5, 15);
-            hugIcon.setBorder(BorderFactory.createCompoundBorder(line, padding));
-            hugIcon.setPreferredSize(new Dimension(100, 50));
-            hugIcon.addMouseListener(new MouseAdapter() {
-                @Override
-                public void mouseClicked(MouseEvent e) {
-                    sendHug(name);  
+                if (friends.indexOf(name) < 0) {
+                    friends.add(name, change.getMood());
+                    addMessage("Local Chat", "🔵 " + name + " has joined the chat");
+                } else if (!friends.mood(name).equals(change.getMood())) {
+                    updateMood(name, change.getMood());
+                    addMessage("Local Chat", "😎 " + name + " changed mood to " + change.getMood());
                 }
-            });
+                break;
 
-            panel.add(nameLabel, BorderLayout.CENTER);
-            panel.add(hugIcon, BorderLayout.EAST);
+            case OFFLINE:
+                if (friends.indexOf(name) >= 0) {
+                    removeUser(name);
+                    addMessage("Local Chat", "🔴 " + name + " has left the chat");
+                }
+                break;
 
-            friendPanel.add(panel);
-            friendPanel.add(Box.createVerticalStrut(5));
-            userPanels.put(name, panel);
+            case RENAMED:
+                if (name.equalsIgnoreCase(userName)) {
+                    renamed(change.getNewName());
+                } else if (friends.indexOf(name) >= 0) {
+                    renameUser(name, change.getNewName());
+                    addMessage("Local Chat", "✏️ " + name + " changed name to " + change.getNewName());
+                }
+                break;
+        }
+    }
 
-            friendPanel.revalidate();
-            friendPanel.repaint();
+    /** The server has renamed this user; until it does, messages keep going out under the old name. */
+    public void renamed(String newName) {
+        onEdt(() -> {
+            userName = newName;
+            profileLabel.setText("me (" + userName + ") " + mood);
+            addMessage("Local Chat", "✏️ You changed name to " + newName);
         });
     }
 
     public void removeUser(String name) {
-        SwingUtilities.invokeLater(() -> {
-            JPanel panel = userPanels.remove(name);
-            if (panel != null) {
-                friendPanel.remove(panel);
-                friendPanel.revalidate();
-                friendPanel.repaint();
-            }
-        });
+        onEdt(() -> friends.remove(name));
     }
 
     public void renameUser(String oldName, String newName) {
-        SwingUtilities.invokeLater(() -> {
-
-            String currentMood = userMoods.getOrDefault(oldName, "😊");
-            userMoods.remove(oldName);
-            userMoods.put(newName, currentMood);
+        onEdt(() -> {
+            String currentMood = friends.mood(oldName);
+            friends.rename(oldName, newName);
 
             if (chatMessages.containsKey(oldName)) {
-                java.util.List<MessageEntry> hist = chatMessages.remove(oldName);
+                ChatHistory hist = chatMessages.remove(oldName);
                 chatMessages.put(newName, hist);
             }
 
-            boolean wasCurrent = oldName.equalsIgnoreCase(currentChat);
-            if (wasCurrent) {
+            if (oldName.equalsIgnoreCase(currentChat)) {
                 currentChat = newName;
                 headerLabel.setText(newName + " " + currentMood);
             }
-
-            JPanel panel = userPanels.remove(oldName);
-            if (panel != null) {
-                friendPanel.remove(panel);
-
-                JPanel newPanel = new JPanel(new BorderLayout());
-                newPanel.setBackground(new Color(173, 216, 230));
-                newPanel.setPreferredSize(new Dimension(0, 50));
-                newPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 50));
-                newPanel.setBorder(BorderFactory.createLineBorder(new Color(200, 200, 200)));
-
-                JLabel nameLabel = new JLabel(newName + " " + currentMood, SwingConstants.LEFT);
-                nameLabel.setFont(new Font("Segoe UI", Font.BOLD, 20));
-                nameLabel.setForeground(new Color(36, 73, 125));
-                nameLabel.setOpaque(false);
-                nameLabel.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
-                nameLabel.addMouseListener(new MouseAdapter() {
-                    @Override
-                    public void mouseClicked(MouseEvent e) {
-                        switchChat(newName);
-                    }
-                });
-                nameLabel.setBorder(BorderFactory.createEmptyBorder(0, 10, 0, 0));
-
-                JLabel hugIcon = new JLabel("Send a hug", SwingConstants.CENTER);
-                hugIcon.setFont(new Font("Segoe UI", Font.PLAIN, 12));
-                hugIcon.setForeground(new Color(36, 73, 125));
-                hugIcon.setOpaque(false);
-                hugIcon.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
-                hugIcon.addMouseListener(new MouseAdapter() {
-                    @Override
-                    public void mouseClicked(MouseEvent e) {
-                        sendHug(newName);
-                    }
-                });
-                hugIcon.setBorder(BorderFactory.createEmptyBorder(0, 5, 0, 10));
-                hugIcon.setPreferredSize(new Dimension(100, 50));
-
-                newPanel.add(nameLabel, BorderLayout.CENTER);
-                newPanel.add(hugIcon, BorderLayout.EAST);
-
-                userPanels.put(newName, newPanel);
-                friendPanel.add(newPanel);
-                friendPanel.add(Box.createVerticalStrut(5));
-            }
-            friendPanel.revalidate();
-            friendPanel.repaint();
         });
     }
 
     public void updateMood(String name, String newMood) {
-        userMoods.put(name, newMood);
-        SwingUtilities.invokeLater(() -> {
-            JPanel panel = userPanels.get(name);
-            if (panel != null) {
-                JLabel nameLabel = (JLabel) panel.getComponent(0);
-                nameLabel.setText(name + " " + newMood);
-            }
+        onEdt(() -> {
+            friends.setMood(name, newMood);
 
             if (name.equalsIgnoreCase(currentChat)) {
                 headerLabel.setText(name + " " + newMood);
@@ -612,20 +983,25 @@ public class ChatClientGUI {
         });
     }
 
+    /** Runs {@code task} now when on the EDT, where the parser calls from, or later on it otherwise. */
+    private static void onEdt(Runnable task) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            task.run();
+        } else {
+            SwingUtilities.invokeLater(task);
+        }
+    }
+
     private void sendHug(String toUser) {
         if (toUser == null || toUser.isEmpty()) return;
-        String hugXml = XMLMessageBuilder.buildHugMessage(userName, toUser);
-        out.println(hugXml);
+        send(Message.hug(userName, toUser));
     }
     private void changeName() {
         String newName = JOptionPane.showInputDialog(frame, "Enter new name:", userName);
         if (newName != null) {
             newName = newName.trim();
             if (!newName.isEmpty()) {
-                String renameXml = XMLMessageBuilder.buildRenameMessage(userName, newName);
-                out.println(renameXml);
-                userName = newName;
-                profileLabel.setText("me (" + userName + ") " + mood);
+                send(Message.rename(userName, newName));
             }
         }
     }
@@ -644,8 +1020,7 @@ public class ChatClientGUI {
         if (selected != null) {
             String newMood = selected.split(" ")[0];
             mood = newMood;
-            String moodXml = XMLMessageBuilder.buildMoodChangeMessage(userName, mood);
-            out.println(moodXml);
+            send(Message.mood(userName, mood));
             profileLabel.setText("me (" + userName + ") " + mood);
             if (currentChat.equals("Local Chat")) {
                 headerLabel.setText("Local Chat");
@@ -655,4 +1030,12 @@ public class ChatClientGUI {
     public String getUserName() {
         return userName;
     }
+
+    InetAddress getServerAddress() {
+        return socket.getInetAddress();
+    }
+
+    FileTransfers getFileTransfers() {
+        return transfers;
+    }
 }
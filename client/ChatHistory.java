@@ -0,0 +1,231 @@
+package client;
+
+import javax.swing.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The messages of one chat, as the model of the message list. Each chat
+ * keeps its own, so switching chats only hands the list another model.
+ * Entries are added in batches: the list hears about them, all at once,
+ * on {@link #flush()}. Used on the EDT only.
+ *
+ * Only the newest {@link #KEEP} entries stay in memory. Older ones are
+ * appended to a file of their own ({@code <file>}, with the offset of
+ * every entry in {@code <file>.idx}) when the history is trimmed, and are
+ * read back a {@link #PAGE} at a time when the list is scrolled up to them.
+ * Entries are numbered from 0 for the oldest; those before {@code first}
+ * are on disk only.
+ */
+class ChatHistory extends AbstractListModel<MessageEntry> {
+    static final int KEEP = 500;
+    static final int PAGE = 200;
+
+    private final Path file;
+    private FileChannel data;
+    private FileChannel index;
+
+    private final List<MessageEntry> entries = new ArrayList<>();
+    /** Number of the first entry in memory. */
+    private long first;
+    /** How many of the oldest entries are on disk. */
+    private long spilled;
+    /** How many entries the list has been told about. */
+    private int flushed;
+
+    ChatHistory(Path file) {
+        this.file = file;
+    }
+
+    void add(MessageEntry entry) {
+        entries.add(entry);
+    }
+
+    /** Tells the list about the entries added since the last flush; returns whether there were any. */
+    boolean flush() {
+        if (flushed == entries.size()) {
+            return false;
+        }
+        int from = flushed;
+        flushed = entries.size();
+        fireIntervalAdded(this, from, flushed - 1);
+        return true;
+    }
+
+    /** {@code entry} looks different now, e.g. its preview is ready. */
+    void changed(MessageEntry entry) {
+        int i = entries.lastIndexOf(entry);
+        if (i >= 0 && i < flushed) {
+            fireContentsChanged(this, i, i);
+        }
+    }
+
+    boolean hasOlder() {
+        return first > 0;
+    }
+
+    /**
+     * Drops the oldest entries from memory, down to {@link #KEEP}, once
+     * there are a page more than that; those not on disk yet are written
+     * there first. Call it when the oldest entries are not being looked at.
+     */
+    void trim() {
+        if (flushed <= KEEP + PAGE) {
+            return;
+        }
+        int drop = flushed - KEEP;
+        boolean kept = true;
+        try {
+            spill(drop);
+        } catch (IOException e) {
+            // memory still has to stay bounded: the older entries are lost and the file starts over
+            System.err.println("Error: " + e.getMessage());
+            kept = false;
+            closeFiles();
+        }
+        entries.subList(0, drop).clear();
+        first   = kept ? first + drop : 0;
+        spilled = kept ? spilled : 0;
+        flushed -= drop;
+        fireIntervalRemoved(this, 0, drop - 1);
+    }
+
+    /** Reads up to a page of the entries before the first one in memory back; returns how many. */
+    int loadOlder() {
+        if (first == 0) {
+            return 0;
+        }
+        int count = (int) Math.min(PAGE, first);
+        List<MessageEntry> page;
+        try {
+            page = read(first - count, count);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            return 0;
+        }
+        entries.addAll(0, page);
+        first -= count;
+        flushed += count;
+        fireIntervalAdded(this, 0, count - 1);
+        return count;
+    }
+
+    @Override
+    public int getSize() {
+        return flushed;
+    }
+
+    @Override
+    public MessageEntry getElementAt(int i) {
+        return entries.get(i);
+    }
+
+    /** Appends the first {@code count} entries in memory to the file, except those already there. */
+    private void spill(int count) throws IOException {
+        int from = (int) Math.max(0, spilled - first);
+        if (from >= count) {
+            return;
+        }
+        if (data == null) {
+            data  = open(file);
+            index = open(Paths.get(file + ".idx"));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteBuffer offsets = ByteBuffer.allocate(Long.BYTES * (count - from));
+        long position = data.size();
+        for (int i = from; i < count; i++) {
+            MessageEntry entry = entries.get(i);
+            offsets.putLong(position + bytes.size());
+            writeString(out, entry.text);
+            writeString(out, entry.time);
+            writeString(out, entry.image != null ? entry.image.toString() : "");
+        }
+        writeFully(data, ByteBuffer.wrap(bytes.toByteArray()), position);
+        writeFully(index, offsets.flip(), spilled * Long.BYTES);
+        spilled += count - from;
+    }
+
+    private List<MessageEntry> read(long from, int count) throws IOException {
+        ByteBuffer offsets = ByteBuffer.allocate(Long.BYTES * (count + 1));
+        if (from + count == spilled) {
+            offsets.limit(Long.BYTES * count);
+        }
+        readFully(index, offsets, from * Long.BYTES);
+        long start = offsets.getLong(0);
+        long end = from + count == spilled ? data.size() : offsets.getLong(Long.BYTES * count);
+
+        ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+        readFully(data, bytes, start);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.array()));
+        List<MessageEntry> page = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String text  = readString(in);
+            String time  = readString(in);
+            String image = readString(in);
+            page.add(new MessageEntry(text, time, image.isEmpty() ? null : Paths.get(image)));
+        }
+        return page;
+    }
+
+    private void closeFiles() {
+        try {
+            if (data != null) {
+                data.close();
+            }
+            if (index != null) {
+                index.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+        data  = null;
+        index = null;
+    }
+
+    private static FileChannel open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        path.toFile().deleteOnExit();
+        return channel;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] utf8 = new byte[in.readInt()];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("chat history file is truncated");
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import shared.Message;
+import shared.PartialFile;
+
+/**
+ * Chunked file transfers of one client. A file goes out as file-start, one
+ * file-chunk per {@link PartialFile#CHUNK_SIZE} bytes with its CRC32C, and
+ * file-end; every chunk is a message of its own, so chat messages are sent
+ * between them. The server acknowledges a chunk once it has passed it on
+ * (written to the recipient's connection or stored) and at most
+ * {@link #WINDOW} chunks are left unacknowledged. Either side holds one
+ * chunk in memory, the file itself is read from and written to disk as it
+ * goes.
+ *
+ * A transfer is identified by the SHA-256 of the content. The receiver
+ * keeps what it got in a {@link PartialFile} and answers file-start and
+ * file-end with the byte to continue from, so sending the same file again
+ * after a lost connection only sends the rest; a corrupted chunk is asked
+ * for again on its own with file-nack.
+ *
+ * Received chunks are decoded and written to disk on a file I/O thread of
+ * their own; the thread reading from the server only hands them over, so
+ * a slow disk does not hold up the chat messages behind them.
+ *
+ * Uploads and downloads from the download port run on a few low-priority
+ * threads, at most {@link #PARALLEL_TRANSFERS} at a time, so the window and
+ * the chat keep working while they do; each shows a progress bar in the
+ * {@link TransferPanel} with a button to cancel it.
+ *
+ * A file sent to "Local Chat" goes to the server's blob store instead of
+ * to everyone; the others get a file-ref and fetch the file when they ask
+ * for it, from the server's download port when it has one and otherwise as
+ * a transfer over the chat connection.
+ */
+class FileTransfers {
+    private static final int WINDOW = 8;
+    private static final int PARALLEL_TRANSFERS = 3;
+    /** Received messages waiting for the file I/O thread before the reading thread has to wait. */
+    private static final int IO_QUEUE = 64;
+    /** Base64 characters of a one-message file decoded at a time; a multiple of 4. */
+    private static final int DECODE_SLICE = 64 * 1024;
+    private static final long STALL_TIMEOUT_SECONDS = 30;
+
+    private final ChatClientGUI gui;
+    private final TransferPanel panel;
+    private final ExecutorService executor = Executors.newFixedThreadPool(PARALLEL_TRANSFERS, task -> {
+        Thread thread = new Thread(task, "file-transfer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private final ThreadPoolExecutor io = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(IO_QUEUE), task -> {
+                Thread thread = new Thread(task, "file-io");
+                thread.setDaemon(true);
+                return thread;
+            }, (task, executor) -> {
+                // the queue is full: the reading thread waits for the disk rather than buffer without bound
+                try {
+                    executor.getQueue().put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            });
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    // touched only by the file I/O thread
+    private final Map<String, Download> downloads = new HashMap<>();
+    private volatile boolean closed;
+
+    /** Files shared to "Local Chat" that can be fetched, by the label shown for them. */
+    private final Map<String, Message> shared = Collections.synchronizedMap(new LinkedHashMap<>());
+    /** Who shared the file of each fetch in progress, by transfer id. */
+    private final Map<String, String> fetches = new ConcurrentHashMap<>();
+
+    FileTransfers(ChatClientGUI gui, TransferPanel panel) {
+        this.gui   = gui;
+        this.panel = panel;
+    }
+
+    /** Sends {@code file} to a user or to "Local Chat" in the background. */
+    void send(File file, String to) {
+        Upload upload = new Upload(to);
+        TransferPanel.Row row = panel.add("⬆ " + file.getName() + " → " + to, upload::cancel);
+        executor.execute(() -> upload(upload, file, row));
+    }
+
+    private void upload(Upload upload, File file, TransferPanel.Row row) {
+        String from = gui.getUserName();
+        String fileName = file.getName();
+        boolean registered = false;
+        boolean sent = false;
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            upload.hash = PartialFile.sha256(file.toPath());
+            long size = in.size();
+            long chunkCount = PartialFile.chunkCount(size);
+            if (upload.cancelled || closed) {
+                return;
+            }
+            if (uploads.putIfAbsent(upload.hash, upload) != null) {
+                throw new IOException("this file is already being sent");
+            }
+            registered = true;
+
+            gui.send(Message.fileStart(from, upload.to, upload.hash, fileName, size, upload.hash));
+            long offset = upload.awaitResume();
+            while (offset >= 0 && offset < size) {
+                row.progress(offset, size);
+                sendChunks(upload, in, offset / PartialFile.CHUNK_SIZE, chunkCount, row, size);
+                if (upload.resumes.isEmpty()) {
+                    gui.send(Message.fileEnd(from, upload.to, upload.hash, chunkCount, upload.hash));
+                }
+                offset = upload.awaitResume();
+            }
+            sent = offset == size;
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            row.remove();
+            if (registered) {
+                uploads.remove(upload.hash, upload);
+                if (!sent && !closed) {
+                    // the receiver keeps what it has for the next time this file is sent
+                    gui.send(Message.fileCancel(from, upload.to, upload.hash));
+                }
+            }
+            if (sent) {
+                gui.addFileMessage(upload.to, "You sent file: " + fileName, file.toPath());
+            } else if (upload.cancelled && !closed) {
+                gui.addMessage(upload.to, "✖ You cancelled sending file: " + fileName);
+            } else {
+                gui.addMessage(upload.to, "❌ Error sending file: " + fileName);
+            }
+        }
+    }
+
+    /**
+     * Sends chunks {@code first} to the last, and again every chunk the
+     * receiver reports corrupted meanwhile. Stops early when the receiver
+     * answers before file-end, which it does when it gives up on the file.
+     */
+    private void sendChunks(Upload upload, FileChannel in, long first, long chunkCount, TransferPanel.Row row, long size)
+            throws IOException, InterruptedException {
+        upload.nacks.clear();
+        Base64.Encoder encoder = Base64.getEncoder();
+        byte[] chunk = new byte[PartialFile.CHUNK_SIZE];
+        byte[] encoded = new byte[4 * ((PartialFile.CHUNK_SIZE + 2) / 3)];
+        long seq = first;
+        while ((seq < chunkCount || !upload.nacks.isEmpty()) && upload.resumes.isEmpty()) {
+            if (!upload.window.tryAcquire(STALL_TIMEOUT_SECONDS, TimeUnit.SECONDS) || upload.cancelled) {
+                throw new IOException("transfer stalled");
+            }
+            Long resend = upload.nacks.poll();
+            long next = resend != null ? resend : seq++;
+
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            long position = next * PartialFile.CHUNK_SIZE;
+            int n;
+            while (buffer.hasRemaining() && (n = in.read(buffer, position)) > 0) {
+                position += n;
+            }
+            int length = buffer.position();
+            byte[] data = length == chunk.length ? chunk : Arrays.copyOf(chunk, length);
+            int encodedLength = encoder.encode(data, encoded);
+            gui.send(Message.fileChunk(upload.to, upload.hash, next, PartialFile.crc(data, 0, length),
+                    new String(encoded, 0, encodedLength, StandardCharsets.ISO_8859_1)));
+            row.progress(position, size);
+        }
+    }
+
+    void onAck(Message message) {
+        Upload upload = uploads.get(message.get(Message.Field.TRANSFER));
+        if (upload != null) {
+            upload.window.release();
+        }
+    }
+
+    void onResume(Message message) {
+        Upload upload = uploads.get(message.get(Message.Field.TRANSFER));
+        if (upload != null) {
+            try {
+                upload.resumes.add(Long.parseLong(message.get(Message.Field.OFFSET)));
+            } catch (NumberFormatException e) {
+                upload.resumes.add(-1L);
+            }
+        }
+    }
+
+    void onNack(Message message) {
+        Upload upload = uploads.get(message.get(Message.Field.TRANSFER));
+        if (upload != null) {
+            // a relayed chunk was acknowledged when passed on, a stored one is answered with this instead
+            if ("Local Chat".equalsIgnoreCase(upload.to)) {
+                upload.window.release();
+            }
+            try {
+                upload.nacks.add(Long.parseLong(message.get(Message.Field.SEQ)));
+            } catch (NumberFormatException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+        }
+    }
+
+    void onShared(Message ref) {
+        String size = formatSize(Long.parseLong(ref.get(Message.Field.SIZE)));
+        shared.put(ref.getFileName() + " (" + ref.getFrom() + ", " + size + ")", ref);
+        gui.addMessage("Local Chat", "📎 " + ref.getFrom() + " shared file: " + ref.getFileName() + " (" + size + ")");
+    }
+
+    List<String> sharedFiles() {
+        synchronized (shared) {
+            return new ArrayList<>(shared.keySet());
+        }
+    }
+
+    /** Asks the server for a shared file; what an earlier attempt already received is not fetched again. */
+    void fetch(String label) {
+        Message ref = shared.get(label);
+        if (ref == null) {
+            return;
+        }
+        if (ref.has(Message.Field.PORT)) {
+            Socket socket = new Socket();
+            TransferPanel.Row row = panel.add("⬇ " + ref.getFileName() + " ← " + ref.getFrom(), () -> {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.err.println("Error: " + e.getMessage());
+                }
+            });
+            executor.execute(() -> download(ref, socket, row));
+            return;
+        }
+        String id = UUID.randomUUID().toString();
+        fetches.put(id, ref.getFrom());
+        gui.send(Message.fileFetch(gui.getUserName(), id, ref.getFileName(), ref.get(Message.Field.CHECKSUM)));
+    }
+
+    /** Reads a shared file from the server's download port, as raw bytes rather than base64 chunks. */
+    private void download(Message ref, Socket socket, TransferPanel.Row row) {
+        String fileName = new File(ref.getFileName()).getName();
+        String hash = ref.get(Message.Field.CHECKSUM);
+        try {
+            if (!PartialFile.isHash(hash)) {
+                throw new IOException("bad content hash");
+            }
+            PartialFile file = PartialFile.open(partPath(hash), Long.parseLong(ref.get(Message.Field.SIZE)));
+            long offset = file.resumeOffset();
+            try (socket) {
+                socket.connect(new InetSocketAddress(gui.getServerAddress(), Integer.parseInt(ref.get(Message.Field.PORT))));
+                if (offset < file.size()) {
+                    OutputStream request = socket.getOutputStream();
+                    request.write(("GET /" + hash + " HTTP/1.1\r\nRange: bytes=" + offset + "-\r\nConnection: close\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1));
+                    request.flush();
+
+                    InputStream in = new BufferedInputStream(socket.getInputStream(), PartialFile.CHUNK_SIZE);
+                    String status = readLine(in);
+                    if (!status.startsWith("HTTP/1.1 206")) {
+                        throw new IOException("download failed: " + status);
+                    }
+                    while (!readLine(in).isEmpty()) {
+                        // the body follows the empty line
+                    }
+                    byte[] chunk = new byte[PartialFile.CHUNK_SIZE];
+                    for (long seq = offset / PartialFile.CHUNK_SIZE; seq < PartialFile.chunkCount(file.size()); seq++) {
+                        int length = (int) Math.min(PartialFile.CHUNK_SIZE, file.size() - seq * PartialFile.CHUNK_SIZE);
+                        if (in.readNBytes(chunk, 0, length) < length) {
+                            throw new IOException("download interrupted");
+                        }
+                        file.write(seq, chunk, length);
+                        row.progress(seq * PartialFile.CHUNK_SIZE + length, file.size());
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // what arrived is kept for the next fetch of this file
+                file.suspend();
+                throw e;
+            }
+            if (!file.hash().equals(hash)) {
+                file.delete();
+                throw new IOException("checksum mismatch");
+            }
+            Path received = Paths.get("received_" + fileName);
+            file.moveTo(received);
+            gui.addFileMessage("Local Chat", "📥 " + ref.getFrom() + " sent file: " + fileName, received);
+        } catch (IOException | NumberFormatException e) {
+            if (socket.isClosed() && !closed) {
+                gui.addMessage("Local Chat", "✖ You cancelled downloading file: " + fileName);
+            } else {
+                System.err.println("Error: " + e.getMessage());
+                gui.addMessage("Local Chat", "❌ Error saving file: " + fileName);
+            }
+        } finally {
+            row.remove();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    void onStart(Message message) {
+        io.execute(() -> start(message));
+    }
+
+    void onChunk(Message message) {
+        io.execute(() -> chunk(message));
+    }
+
+    void onEnd(Message message) {
+        io.execute(() -> end(message));
+    }
+
+    /** A whole file in one message, from a client that does not send chunks. */
+    void onFile(Message message) {
+        io.execute(() -> saveFile(message));
+    }
+
+    private void start(Message message) {
+        String id = message.get(Message.Field.TRANSFER);
+        String sharer = fetches.remove(id);
+        String from = sharer != null ? sharer : message.getFrom();
+        String hash = message.get(Message.Field.CHECKSUM);
+        String fileName = new File(message.getFileName()).getName();
+
+        Download download = downloads.get(id);
+        if (download == null) {
+            try {
+                if (hash == null || !PartialFile.isHash(hash)) {
+                    throw new IOException("bad content hash");
+                }
+                PartialFile file = PartialFile.open(partPath(hash), Long.parseLong(message.get(Message.Field.SIZE)));
+                TransferPanel.Row row = panel.add("⬇ " + fileName + " ← " + from, () -> io.execute(() -> cancel(id)));
+                download = new Download(id, from, message.getFrom(), message.getTo(), fileName, hash, file, row);
+                downloads.put(id, download);
+                row.progress(file.receivedBytes(), file.size());
+            } catch (IOException | NumberFormatException e) {
+                gui.send(Message.fileResume(gui.getUserName(), message.getFrom(), id, -1));
+                gui.addMessage(chat(from, message.getTo()), "❌ Error saving file: " + fileName);
+                return;
+            }
+        }
+        if (download.file.isComplete()) {
+            complete(download);
+        } else {
+            answer(download, download.file.resumeOffset());
+        }
+    }
+
+    private void chunk(Message message) {
+        Download download = downloads.get(message.get(Message.Field.TRANSFER));
+        if (download == null) {
+            return;
+        }
+        long seq;
+        try {
+            seq = Long.parseLong(message.get(Message.Field.SEQ));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        try {
+            byte[] data = Base64.getDecoder().decode(message.getFileData());
+            if (download.file.write(seq, data, Long.parseLong(message.get(Message.Field.CRC)))) {
+                download.row.progress(download.file.receivedBytes(), download.file.size());
+            } else {
+                gui.send(Message.fileNack(gui.getUserName(), download.replyTo, download.id, seq));
+            }
+        } catch (IllegalArgumentException e) {
+            gui.send(Message.fileNack(gui.getUserName(), download.replyTo, download.id, seq));
+        } catch (IOException e) {
+            finish(download);
+            suspend(download);
+            answer(download, -1);
+            gui.addMessage(download.chat(), "❌ Error saving file: " + download.fileName);
+        }
+    }
+
+    private void end(Message message) {
+        Download download = downloads.get(message.get(Message.Field.TRANSFER));
+        if (download == null) {
+            return;
+        }
+        if (!message.has(Message.Field.CHECKSUM)) {
+            finish(download);
+            suspend(download);
+            gui.addMessage(download.chat(), "⚠️ " + download.from + " stopped sending file: " + download.fileName);
+        } else if (download.file.isComplete()) {
+            complete(download);
+        } else {
+            answer(download, download.file.resumeOffset());
+        }
+    }
+
+    /** Stops receiving a file when its ✖ is pressed; the sender is told and what arrived is kept. */
+    private void cancel(String id) {
+        Download download = downloads.get(id);
+        if (download == null) {
+            return;
+        }
+        finish(download);
+        suspend(download);
+        answer(download, -1);
+        gui.addMessage(download.chat(), "✖ You cancelled receiving file: " + download.fileName);
+    }
+
+    private void finish(Download download) {
+        downloads.remove(download.id);
+        download.row.remove();
+    }
+
+    private void complete(Download download) {
+        finish(download);
+        Path received = Paths.get("received_" + download.fileName);
+        try {
+            if (!download.file.hash().equals(download.hash)) {
+                download.file.delete();
+                throw new IOException("checksum mismatch");
+            }
+            download.file.moveTo(received);
+        } catch (IOException e) {
+            answer(download, -1);
+            gui.addMessage(download.chat(), "❌ Error saving file: " + download.fileName);
+            return;
+        }
+        answer(download, download.file.size());
+        if ("Local Chat".equalsIgnoreCase(download.to)) {
+            gui.addFileMessage("Local Chat", "📥 " + download.from + " sent file: " + download.fileName, received);
+        } else {
+            gui.addFileMessage(download.from, "📁 " + download.from + " sent you file: " + download.fileName, received);
+        }
+    }
+
+    private void answer(Download download, long offset) {
+        gui.send(Message.fileResume(gui.getUserName(), download.replyTo, download.id, offset));
+    }
+
+    /** The connection is gone: stops uploads and keeps partly received files for a resume. */
+    void close() {
+        closed = true;
+        for (Upload upload : uploads.values()) {
+            upload.cancel();
+        }
+        io.execute(() -> {
+            for (Download download : downloads.values()) {
+                download.row.remove();
+                suspend(download);
+            }
+            downloads.clear();
+        });
+    }
+
+    /**
+     * Writes a one-message file to disk a slice at a time, decoded straight
+     * from the bytes the message arrived in, so neither the base64 text nor
+     * the decoded file is ever copied whole onto the heap.
+     */
+    private void saveFile(Message message) {
+        String from = message.getFrom();
+        String to = message.getTo();
+        String fileName = new File(message.getFileName()).getName();
+        Path part = Paths.get("received_" + fileName + ".part");
+        Path received = Paths.get("received_" + fileName);
+        try {
+            try (InputStream in = Base64.getDecoder().wrap(message.openFileData());
+                 FileChannel out = FileChannel.open(part,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                byte[] decoded = new byte[DECODE_SLICE / 4 * 3];
+                int n;
+                while ((n = in.read(decoded)) > 0) {
+                    ByteBuffer buffer = ByteBuffer.wrap(decoded, 0, n);
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                }
+            }
+            Files.move(part, received, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | IllegalArgumentException e) {
+            try {
+                Files.deleteIfExists(part);
+            } catch (IOException ex) {
+                System.err.println("Error: " + ex.getMessage());
+            }
+            if ("Local Chat".equalsIgnoreCase(to)) {
+                gui.addMessage("Local Chat", "❌ Error saving file: " + fileName);
+            } else if (from.equalsIgnoreCase(gui.getUserName())) {
+                gui.addMessage(to, "❌ Error sending file: " + fileName);
+            } else if (to.equalsIgnoreCase(gui.getUserName())) {
+                gui.addMessage(from, "❌ Error saving file: " + fileName);
+            }
+            return;
+        }
+        if ("Local Chat".equalsIgnoreCase(to)) {
+            gui.addFileMessage("Local Chat", "📥 " + from + " sent file: " + fileName, received);
+        } else if (from.equalsIgnoreCase(gui.getUserName())) {
+            gui.addFileMessage(to, "You sent file: " + fileName, received);
+        } else if (to.equalsIgnoreCase(gui.getUserName())) {
+            gui.addFileMessage(from, "📁 " + from + " sent you file: " + fileName, received);
+        }
+    }
+
+    private static void suspend(Download download) {
+        try {
+            download.file.suspend();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    private static Path partPath(String hash) {
+        return Paths.get("received_" + hash + ".part");
+    }
+
+    private static String chat(String from, String to) {
+        return "Local Chat".equalsIgnoreCase(to) ? "Local Chat" : from;
+    }
+
+    private static String formatSize(long size) {
+        if (size < 1024 * 1024) {
+            return String.format("%.1f KB", size / 1024.0);
+        }
+        return String.format("%.1f MB", size / (1024.0 * 1024));
+    }
+
+    private static final class Upload {
+        final String to;
+        final Semaphore window = new Semaphore(WINDOW);
+        final BlockingQueue<Long> resumes = new LinkedBlockingQueue<>();
+        final Queue<Long> nacks = new ConcurrentLinkedQueue<>();
+        /** Set by the uploading thread once the file is hashed. */
+        String hash;
+        volatile boolean cancelled;
+
+        Upload(String to) {
+            this.to = to;
+        }
+
+        void cancel() {
+            cancelled = true;
+            window.release(WINDOW);
+            resumes.add(-1L);
+        }
+
+        /** The receiver's answer to file-start or file-end: the byte to continue from. */
+        long awaitResume() throws IOException, InterruptedException {
+            Long offset = resumes.poll(STALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (offset == null || cancelled) {
+                throw new IOException("transfer stalled");
+            }
+            return offset;
+        }
+    }
+
+    private static final class Download {
+        final String id;
+        /** Who the file is from, as shown to the user. */
+        final String from;
+        /** Where answers go: the sending user, or "" for the server. */
+        final String replyTo;
+        final String to;
+        final String fileName;
+        final String hash;
+        final PartialFile file;
+        final TransferPanel.Row row;
+
+        Download(String id, String from, String replyTo, String to, String fileName, String hash, PartialFile file,
+                 TransferPanel.Row row) {
+            this.id       = id;
+            this.from     = from;
+            this.replyTo  = replyTo;
+            this.to       = to;
+            this.fileName = fileName;
+            this.hash     = hash;
+            this.file     = file;
+            this.row      = row;
+        }
+
+        String chat() {
+            return FileTransfers.chat(from, to);
+        }
+    }
+}
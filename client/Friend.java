@@ -0,0 +1,12 @@
+package client;
+
+/** One user in the friend list. */
+final class Friend {
+    final String name;
+    String mood;
+
+    Friend(String name, String mood) {
+        this.name = name;
+        this.mood = mood;
+    }
+}
@@ -0,0 +1,121 @@
+package client;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The users online, sorted by name, as the model of the friend list. Names
+ * are compared ignoring case, as the server does. Every change tells the
+ * list about the one row it touches, so a join or a mood change repaints
+ * that row instead of laying out the whole list. Used on the EDT only.
+ */
+class FriendList extends AbstractListModel<Friend> {
+    static final String DEFAULT_MOOD = "😊";
+
+    private static final Comparator<Friend> BY_NAME =
+            Comparator.comparing(friend -> friend.name, String.CASE_INSENSITIVE_ORDER);
+
+    private final List<Friend> friends = new ArrayList<>();
+
+    /** Row of the user called {@code name}, in any case, or a negative number if there is none. */
+    int indexOf(String name) {
+        return Collections.binarySearch(friends, new Friend(name, null), BY_NAME);
+    }
+
+    /** The name as the list has it, or null if no such user is online. */
+    String find(String name) {
+        int i = indexOf(name);
+        return i >= 0 ? friends.get(i).name : null;
+    }
+
+    /**
+     * Up to {@code limit} names starting with {@code prefix}, in any case, in
+     * list order. The list is sorted the same way, so they are the rows from
+     * where the prefix would go on: a binary search and {@code limit} steps.
+     */
+    List<String> withPrefix(String prefix, int limit) {
+        List<String> names = new ArrayList<>();
+        int i = indexOf(prefix);
+        for (i = i >= 0 ? i : -i - 1; i < friends.size() && names.size() < limit; i++) {
+            String name = friends.get(i).name;
+            if (!name.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                break;
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    String mood(String name) {
+        int i = indexOf(name);
+        return i >= 0 ? friends.get(i).mood : DEFAULT_MOOD;
+    }
+
+    void add(String name, String mood) {
+        int i = indexOf(name);
+        if (i >= 0) {
+            return;
+        }
+        i = -i - 1;
+        friends.add(i, new Friend(name, mood != null ? mood : DEFAULT_MOOD));
+        fireIntervalAdded(this, i, i);
+    }
+
+    /** Replaces the whole list by the users of {@code moods}, with one sort instead of a search and an event per user. */
+    void setAll(Map<String, String> moods) {
+        int oldSize = friends.size();
+        if (oldSize > 0) {
+            friends.clear();
+            fireIntervalRemoved(this, 0, oldSize - 1);
+        }
+        for (Map.Entry<String, String> user : moods.entrySet()) {
+            String mood = user.getValue();
+            friends.add(new Friend(user.getKey(), mood != null && !mood.isEmpty() ? mood : DEFAULT_MOOD));
+        }
+        friends.sort(BY_NAME);
+        if (!friends.isEmpty()) {
+            fireIntervalAdded(this, 0, friends.size() - 1);
+        }
+    }
+
+    void remove(String name) {
+        int i = indexOf(name);
+        if (i >= 0) {
+            friends.remove(i);
+            fireIntervalRemoved(this, i, i);
+        }
+    }
+
+    void rename(String oldName, String newName) {
+        int i = indexOf(oldName);
+        if (i < 0) {
+            return;
+        }
+        String mood = friends.get(i).mood;
+        friends.remove(i);
+        fireIntervalRemoved(this, i, i);
+        add(newName, mood);
+    }
+
+    void setMood(String name, String mood) {
+        int i = indexOf(name);
+        if (i >= 0) {
+            friends.get(i).mood = mood;
+            fireContentsChanged(this, i, i);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return friends.size();
+    }
+
+    @Override
+    public Friend getElementAt(int i) {
+        return friends.get(i);
+    }
+}
@@ -0,0 +1,70 @@
+package client;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.Map;
+
+/**
+ * Paints one user of the friend list: the name and mood, and the "Send a
+ * hug" button on the right. The button is only a picture; the list works
+ * out from the click position which of the two was clicked, see
+ * {@link #isHug(int, int)}. Every row is {@link #ROW_HEIGHT} high.
+ */
+class FriendRenderer extends JComponent implements ListCellRenderer<Friend> {
+    static final int ROW_HEIGHT = 55;
+    static final int HUG_WIDTH  = 100;
+
+    private static final Font NAME_FONT = new Font("Segoe UI", Font.BOLD, 20);
+    private static final Font HUG_FONT  = new Font("Segoe UI", Font.PLAIN, 12);
+    private static final Color BACKGROUND = new Color(173, 216, 230);
+    private static final Color BORDER     = new Color(200, 200, 200);
+    private static final Color TEXT       = new Color(36, 73, 125);
+    private static final int GAP = 5;
+
+    private Friend friend;
+
+    /** Whether a click at {@code x} in a list {@code width} wide is on the hug button. */
+    static boolean isHug(int x, int width) {
+        return x >= width - HUG_WIDTH;
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends Friend> list, Friend value,
+                                                  int index, boolean isSelected, boolean cellHasFocus) {
+        friend = value;
+        return this;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g;
+        Object hints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+        if (hints instanceof Map) {
+            g2.addRenderingHints((Map<?, ?>) hints);
+        }
+        int width  = getWidth();
+        int height = getHeight() - GAP;
+        g2.setColor(Color.WHITE);
+        g2.fillRect(0, 0, width, getHeight());
+        g2.setColor(BACKGROUND);
+        g2.fillRect(0, 0, width, height);
+        g2.setColor(BORDER);
+        g2.drawRect(0, 0, width - 1, height - 1);
+
+        FontMetrics name = g2.getFontMetrics(NAME_FONT);
+        g2.setFont(NAME_FONT);
+        g2.setColor(TEXT);
+        Shape clip = g2.getClip();
+        g2.clipRect(0, 0, width - HUG_WIDTH, height);
+        g2.drawString(friend.name + " " + friend.mood, 10, (height - name.getHeight()) / 2 + name.getAscent());
+        g2.setClip(clip);
+
+        int hugX = width - HUG_WIDTH;
+        g2.drawRect(hugX, 0, HUG_WIDTH - 1, height - 1);
+        FontMetrics hug = g2.getFontMetrics(HUG_FONT);
+        g2.setFont(HUG_FONT);
+        String label = "Send a hug";
+        g2.drawString(label, hugX + (HUG_WIDTH - hug.stringWidth(label)) / 2,
+                (height - hug.getHeight()) / 2 + hug.getAscent());
+    }
+}
@@ -11,6 +11,7 @@ import shared.XMLMessageBuilder;
 public class LoginFrame extends JFrame {
     private JTextField ipField;
     private JTextField nameField;
+    private JButton continueButton;
 
     public LoginFrame() {
         setTitle("PathToYou");
@@ -83,7 +84,7 @@ public class LoginFrame extends JFrame {
         JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT, 10, 0));
         buttons.setOpaque(false); 
 
-        JButton continueButton = new JButton("Continue");
+        continueButton = new JButton("Continue");
         continueButton.setFont(new Font("Segoe UI", Font.BOLD, 14));
         continueButton.setBackground(new Color(36, 73, 125)); 
         continueButton.setForeground(Color.WHITE);             
@@ -132,26 +133,42 @@ public class LoginFrame extends JFrame {
             );
             return;
         }
-        try {
-            new ChatClientGUI(ip, 12345, name);
-            dispose();
-        } catch (IOException ex) {
-            String msg = ex.getMessage();
-            if (msg != null && msg.contains("name already taken")) {
-                JOptionPane.showMessageDialog(
-                    this,
-                    "That name was already taken",
-                    "Error",
-                    JOptionPane.ERROR_MESSAGE
-                );
-            } else {
-                JOptionPane.showMessageDialog(
-                    this,
-                    "Connection failed: " + msg,
-                    "Error",
-                    JOptionPane.ERROR_MESSAGE
-                );
+        // connecting may have to wait for the server to let this client in; the window stays responsive meanwhile
+        continueButton.setEnabled(false);
+        continueButton.setText("Connecting…");
+        Thread connecting = new Thread(() -> {
+            try {
+                new ChatClientGUI(ip, 12345, name, millis -> SwingUtilities.invokeLater(() ->
+                        continueButton.setText("In queue, ~" + Math.max(1, (millis + 999) / 1000) + " s")));
+                SwingUtilities.invokeLater(this::dispose);
+            } catch (IOException ex) {
+                SwingUtilities.invokeLater(() -> {
+                    continueButton.setEnabled(true);
+                    continueButton.setText("Continue");
+                    showConnectError(ex);
+                });
             }
+        }, "connect");
+        connecting.setDaemon(true);
+        connecting.start();
+    }
+
+    private void showConnectError(IOException ex) {
+        String msg = ex.getMessage();
+        if (msg != null && msg.contains("name already taken")) {
+            JOptionPane.showMessageDialog(
+                this,
+                "That name was already taken",
+                "Error",
+                JOptionPane.ERROR_MESSAGE
+            );
+        } else {
+            JOptionPane.showMessageDialog(
+                this,
+                "Connection failed: " + msg,
+                "Error",
+                JOptionPane.ERROR_MESSAGE
+            );
         }
     }
 
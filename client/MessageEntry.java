@@ -0,0 +1,28 @@
+package client;
+
+import java.awt.*;
+import java.nio.file.Path;
+
+/** One line of a chat's history, as shown in the message list. */
+final class MessageEntry {
+    final String text;
+    /** When it was sent, or how far sending it has got for one of this user's own messages. */
+    String time;
+    /** An image sent or received with this message, shown as a preview; null for other messages. */
+    final Path image;
+
+    /** Size the renderer measured for this entry; null until measured or when the preview arrives. */
+    Dimension size;
+    /** Whether the preview is being made (or could not be), so it is not asked for on every paint. */
+    boolean previewRequested;
+
+    MessageEntry(String text, String time) {
+        this(text, time, null);
+    }
+
+    MessageEntry(String text, String time, Path image) {
+        this.text  = text;
+        this.time  = time;
+        this.image = image;
+    }
+}
@@ -0,0 +1,90 @@
+package client;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Paints one message of the list: its preview if it has one, the text and
+ * the time under it. A single instance paints every visible row; the size
+ * of an entry is worked out once and kept in it, so laying out a long
+ * history costs a field read per row rather than an HTML layout.
+ */
+class MessageRenderer extends JComponent implements ListCellRenderer<MessageEntry> {
+    private static final Font TEXT_FONT = new Font("Segoe UI", Font.PLAIN, 12);
+    private static final Font TIME_FONT = new Font("Segoe UI", Font.PLAIN, 10);
+    private static final int PADDING_X = 5;
+    private static final int PADDING_Y = 2;
+
+    private final Thumbnails thumbnails;
+    private final Consumer<MessageEntry> onPreview;
+    private MessageEntry entry;
+    private Icon preview;
+
+    /** {@code onPreview} runs on the EDT when the preview of an entry has become available. */
+    MessageRenderer(Thumbnails thumbnails, Consumer<MessageEntry> onPreview) {
+        this.thumbnails = thumbnails;
+        this.onPreview  = onPreview;
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends MessageEntry> list, MessageEntry value,
+                                                  int index, boolean isSelected, boolean cellHasFocus) {
+        entry = value;
+        preview = null;
+        if (value.image != null && !value.previewRequested) {
+            preview = thumbnails.get(value.image, () -> {
+                value.previewRequested = false;
+                value.size = null;
+                onPreview.accept(value);
+            });
+            // not in memory: it is being made, and the entry is measured again once it is
+            value.previewRequested = preview == null;
+        }
+        return this;
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if (entry.size == null) {
+            // the list is as wide as the chat and a longer line is cut off, so the
+            // text is not measured: with emoji that would be the slow part of a layout
+            int width  = 0;
+            int height = getFontMetrics(TEXT_FONT).getHeight() + getFontMetrics(TIME_FONT).getHeight();
+            if (preview != null) {
+                width  = Math.max(width, preview.getIconWidth());
+                height += preview.getIconHeight();
+            }
+            entry.size = new Dimension(width + 2 * PADDING_X, height + 2 * PADDING_Y);
+        }
+        return entry.size;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g;
+        Object hints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+        if (hints instanceof Map) {
+            g2.addRenderingHints((Map<?, ?>) hints);
+        }
+        g2.setColor(Color.WHITE);
+        g2.fillRect(0, 0, getWidth(), getHeight());
+
+        int y = PADDING_Y;
+        if (preview != null) {
+            preview.paintIcon(this, g2, PADDING_X, y);
+            y += preview.getIconHeight();
+        }
+        FontMetrics text = g2.getFontMetrics(TEXT_FONT);
+        g2.setFont(TEXT_FONT);
+        g2.setColor(Color.BLACK);
+        g2.drawString(entry.text, PADDING_X, y + text.getAscent());
+        y += text.getHeight();
+
+        FontMetrics time = g2.getFontMetrics(TIME_FONT);
+        g2.setFont(TIME_FONT);
+        g2.setColor(Color.GRAY);
+        g2.drawString(entry.time, PADDING_X, y + time.getAscent());
+    }
+}
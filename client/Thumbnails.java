@@ -0,0 +1,207 @@
+package client;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Previews of image files shown in the chat. They are made on a few
+ * background threads: the image is read subsampled to about twice the
+ * preview size, so a large photo is never decoded at full resolution, and
+ * then scaled down. Previews are kept in memory up to
+ * {@link #MEMORY_BUDGET} bytes of pixels, least recently shown dropped
+ * first, and as PNG files in {@link #DISK_CACHE}, so they are made once per
+ * file. The EDT only ever takes a finished preview from memory.
+ */
+class Thumbnails {
+    static final int SIZE = 160;
+    private static final long MEMORY_BUDGET = 16L * 1024 * 1024;
+    private static final int WORKERS = 2;
+    private static final Path DISK_CACHE = Paths.get(".thumbnails");
+
+    private static final Set<String> SUFFIXES = new HashSet<>();
+
+    static {
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            SUFFIXES.add(suffix.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKERS, task -> {
+        Thread thread = new Thread(task, "thumbnail");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    // guarded by this; access order, so the eldest entry is the least recently shown preview
+    private final LinkedHashMap<Path, ImageIcon> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    /** Callbacks waiting for each preview being made. */
+    private final Map<Path, List<Runnable>> loading = new HashMap<>();
+    /** Files that turned out not to be readable images. */
+    private final Set<Path> failed = new HashSet<>();
+
+    /** Whether {@code file} looks like an image, going by its name. */
+    static boolean isImage(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && SUFFIXES.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * The preview of {@code file} if it is in memory. Otherwise returns null
+     * and has it made; {@code onReady} then runs on the EDT once it is.
+     */
+    synchronized Icon get(Path file, Runnable onReady) {
+        Path key = file.toAbsolutePath();
+        ImageIcon icon = cache.get(key);
+        if (icon != null || failed.contains(key)) {
+            return icon;
+        }
+        List<Runnable> waiting = loading.get(key);
+        if (waiting == null) {
+            waiting = new ArrayList<>();
+            loading.put(key, waiting);
+            workers.execute(() -> load(key));
+        }
+        if (onReady != null) {
+            waiting.add(onReady);
+        }
+        return null;
+    }
+
+    /** {@code file} has been written again; its old preview is out of date. */
+    synchronized void forget(Path file) {
+        Path key = file.toAbsolutePath();
+        ImageIcon icon = cache.remove(key);
+        if (icon != null) {
+            cachedBytes -= bytes(icon);
+        }
+        failed.remove(key);
+    }
+
+    private void load(Path file) {
+        ImageIcon icon = null;
+        try {
+            BufferedImage image = loadCached(file);
+            if (image != null) {
+                icon = new ImageIcon(image);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+
+        List<Runnable> waiting;
+        synchronized (this) {
+            waiting = loading.remove(file);
+            if (icon == null) {
+                failed.add(file);
+                return;
+            }
+            cache.put(file, icon);
+            cachedBytes += bytes(icon);
+            Iterator<ImageIcon> eldest = cache.values().iterator();
+            while (cachedBytes > MEMORY_BUDGET && eldest.hasNext()) {
+                ImageIcon evicted = eldest.next();
+                if (evicted != icon) {
+                    cachedBytes -= bytes(evicted);
+                    eldest.remove();
+                }
+            }
+        }
+        for (Runnable onReady : waiting) {
+            SwingUtilities.invokeLater(onReady);
+        }
+    }
+
+    /** The preview from the disk cache, or made from the image and saved there. */
+    private static BufferedImage loadCached(Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        String key = file + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis();
+        Path cached = DISK_CACHE.resolve(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + ".png");
+        if (Files.exists(cached)) {
+            BufferedImage thumbnail = ImageIO.read(cached.toFile());
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
+
+        BufferedImage image = readSubsampled(file);
+        if (image == null) {
+            return null;
+        }
+        BufferedImage thumbnail = scale(image);
+        Files.createDirectories(DISK_CACHE);
+        Path temp = Files.createTempFile(DISK_CACHE, "thumb", ".tmp");
+        try {
+            ImageIO.write(thumbnail, "png", temp.toFile());
+            Files.move(temp, cached, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return thumbnail;
+    }
+
+    /** Reads every n-th pixel of every n-th row, enough for a preview of {@link #SIZE}. */
+    private static BufferedImage readSubsampled(Path file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file.toFile())) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int step = Math.max(1, Math.max(reader.getWidth(0), reader.getHeight(0)) / (SIZE * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static BufferedImage scale(BufferedImage image) {
+        double factor = Math.min(1.0, (double) SIZE / Math.max(image.getWidth(), image.getHeight()));
+        int width  = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = thumbnail.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return thumbnail;
+    }
+
+    private static long bytes(ImageIcon icon) {
+        return 4L * icon.getIconWidth() * icon.getIconHeight();
+    }
+}
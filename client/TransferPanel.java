@@ -0,0 +1,86 @@
+package client;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Progress bars of the file transfers in progress, above the input field.
+ * Rows are added, updated and removed from the transfer threads; the
+ * changes reach Swing through {@link SwingUtilities#invokeLater}, and only
+ * when the percentage changes.
+ */
+class TransferPanel extends JPanel {
+
+    TransferPanel() {
+        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        setBackground(new Color(173, 216, 230));
+        setVisible(false);
+    }
+
+    /** Adds a row that waits for its transfer to start; {@code cancel} runs when its ✖ is pressed. */
+    Row add(String text, Runnable cancel) {
+        Row row = new Row(text, cancel);
+        SwingUtilities.invokeLater(() -> {
+            add(row.panel);
+            setVisible(true);
+            revalidate();
+        });
+        return row;
+    }
+
+    final class Row {
+        private final JPanel panel = new JPanel(new BorderLayout(5, 0));
+        private final JProgressBar bar = new JProgressBar(0, 100);
+        private volatile int percent = -1;
+
+        private Row(String text, Runnable cancel) {
+            JLabel label = new JLabel(text);
+            label.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+            label.setForeground(new Color(36, 73, 125));
+            label.setPreferredSize(new Dimension(220, 20));
+
+            bar.setIndeterminate(true);
+            bar.setStringPainted(true);
+            bar.setString("waiting");
+
+            JButton cancelButton = new JButton("✖");
+            cancelButton.setFont(new Font("Segoe UI", Font.PLAIN, 11));
+            cancelButton.setFocusPainted(false);
+            cancelButton.setBackground(new Color(173, 216, 230));
+            cancelButton.setToolTipText("Cancel");
+            cancelButton.addActionListener(e -> {
+                cancelButton.setEnabled(false);
+                cancel.run();
+            });
+
+            panel.setOpaque(false);
+            panel.setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
+            panel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 26));
+            panel.add(label, BorderLayout.WEST);
+            panel.add(bar, BorderLayout.CENTER);
+            panel.add(cancelButton, BorderLayout.EAST);
+        }
+
+        void progress(long done, long total) {
+            int p = total <= 0 ? 100 : (int) Math.min(100, done * 100 / total);
+            if (p == percent) {
+                return;
+            }
+            percent = p;
+            SwingUtilities.invokeLater(() -> {
+                bar.setIndeterminate(false);
+                bar.setValue(p);
+                bar.setString(p + "%");
+            });
+        }
+
+        void remove() {
+            SwingUtilities.invokeLater(() -> {
+                TransferPanel.this.remove(panel);
+                setVisible(getComponentCount() > 0);
+                revalidate();
+                repaint();
+            });
+        }
+    }
+}
@@ -1,51 +1,71 @@
 package client;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.Base64;
-import shared.XMLMessageBuilder;
+import shared.Message;
+import shared.MessageCodec;
 
 
 
 public class XMLMessageParser {
 
     public static void parseMessage(String xml, ChatClientGUI gui) {
-        String type = XMLMessageBuilder.parseType(xml);
-        String from = XMLMessageBuilder.parseSender(xml);
-        String to   = XMLMessageBuilder.parseReceiver(xml);
-        String body = XMLMessageBuilder.parseBody(xml);
-        String mood = XMLMessageBuilder.parseMood(xml);
+        parseMessage(MessageCodec.parse(xml), gui);
+    }
+
+    public static void parseMessage(Message message, ChatClientGUI gui) {
+        String from = message.getFrom();
+        String to   = message.getTo();
+        String body = message.getBody();
+        String mood = message.getMood();
 
-        switch (type) {
+        switch (message.getType()) {
             
-            case "join":
+            case JOIN:
                 if (from != null && !from.isEmpty() && !from.equalsIgnoreCase(gui.getUserName())) {
                     gui.addUser(from);
                 }
                 gui.addMessage("Local Chat", "🔵 " + from + " has joined the chat");
                 break;
 
-            case "leave":
+            case ROSTER:
+                try {
+                    gui.setRoster(message.getVersion(), message.getRoster());
+                } catch (RuntimeException e) {
+                    gui.addMessage("Local Chat", "⚠️ Invalid user list from the server");
+                }
+                break;
+
+            case PRESENCE:
+                try {
+                    gui.applyPresence(message.getVersion(), message.getPresenceChanges());
+                } catch (RuntimeException e) {
+                    gui.addMessage("Local Chat", "⚠️ Invalid presence update from the server");
+                }
+                break;
+
+            case LEAVE:
                 if (from != null && !from.isEmpty()) {
                     gui.removeUser(from);
                 }
                 gui.addMessage("Local Chat", "🔴 " + from + " has left the chat");
                 break;
 
-            case "broadcast":
-                gui.addMessage("Local Chat", "💬 " + from + ": " + body);
+            case BROADCAST:
+                if (from != null && from.equalsIgnoreCase(gui.getUserName())) {
+                    gui.addOwnMessage("Local Chat", "💬 " + from + ": " + body);
+                } else {
+                    gui.addMessage("Local Chat", "💬 " + from + ": " + body);
+                }
                 break;
 
-            case "private":
+            case PRIVATE:
                 if (from.equalsIgnoreCase(gui.getUserName())) {
-                    gui.addMessage(to, "🔒 You ➡ " + to + ": " + body);
+                    gui.addOwnMessage(to, "🔒 You ➡ " + to + ": " + body);
                 } else if (to.equalsIgnoreCase(gui.getUserName())) {
                     gui.addMessage(from, "🔒 " + from + " ➡ You: " + body);
                 }
                 break;
 
-            case "hug":
+            case HUG:
                 if (from.equalsIgnoreCase(gui.getUserName())) {
                     gui.addMessage(to, "🤗 You sent a hug to " + to);
                 } else if (to.equalsIgnoreCase(gui.getUserName())) {
@@ -53,22 +73,26 @@ public class XMLMessageParser {
                 }
                 break;
 
-            case "rename":
+            case RENAME:
                 if (body != null && body.contains("=>")) {
                     String[] parts = body.split("=>");
                     String oldName = parts[0].trim();
                     String newName = parts[1].trim();
-                    gui.addMessage("Local Chat", "✏️ " + oldName + " changed name to " + newName);
-                    gui.renameUser(oldName, newName);
+                    if (oldName.equalsIgnoreCase(gui.getUserName())) {
+                        gui.renamed(newName);
+                    } else {
+                        gui.addMessage("Local Chat", "✏️ " + oldName + " changed name to " + newName);
+                        gui.renameUser(oldName, newName);
+                    }
                 }
                 break;
 
-            case "mood":
+            case MOOD:
                 gui.addMessage("Local Chat", "😎 " + from + " changed mood to " + mood);
                 gui.updateMood(from, mood);
                 break;
 
-            case "emotion":
+            case EMOTION:
                 if ("Local Chat".equalsIgnoreCase(to)) {
                     gui.addMessage("Local Chat", "Reaction " + from + ": " + body);
                 } else {
@@ -80,48 +104,48 @@ public class XMLMessageParser {
                 }
                 break;
 
-            case "file":
-                String fileName = XMLMessageBuilder.parseFileName(xml);
-                String fileData = XMLMessageBuilder.parseFileContent(xml);
-                if (fileName != null && fileData != null) {
-                    try {
-                        byte[] data = Base64.getDecoder().decode(fileData);
-                        File outFile = new File("received_" + fileName);
-                        FileOutputStream fos = new FileOutputStream(outFile);
-                        fos.write(data);
-                        fos.close();
-
-                        if ("Local Chat".equalsIgnoreCase(to)) {
-                            gui.addMessage("Local Chat", "📥 " + from + " sent file: " + fileName);
-                        } else {
-                            if (from.equalsIgnoreCase(gui.getUserName())) {
-                                gui.addMessage(to, "You sent file: " + fileName);
-                            } else if (to.equalsIgnoreCase(gui.getUserName())) {
-                                gui.addMessage(from, "📁 " + from + " sent you file: " + fileName);
-                            }
-                        }
-                    } catch (IOException ex) {
-                        if ("Local Chat".equalsIgnoreCase(to)) {
-                            gui.addMessage("Local Chat", "❌ Error saving file: " + fileName);
-                        } else {
-                            if (from.equalsIgnoreCase(gui.getUserName())) {
-                                gui.addMessage(to, "❌ Error sending file: " + fileName);
-                            } else if (to.equalsIgnoreCase(gui.getUserName())) {
-                                gui.addMessage(from, "❌ Error saving file: " + fileName);
-                            }
-                        }
-                    }
+            case FILE:
+                if (message.has(Message.Field.FILENAME) && message.has(Message.Field.FILEDATA)) {
+                    gui.getFileTransfers().onFile(message);
                 } else {
                     gui.addMessage("Local Chat", "⚠️ Invalid file message from " + from);
                 }
                 break;
 
-            case "error":
+            case FILE_START:
+                gui.getFileTransfers().onStart(message);
+                break;
+
+            case FILE_CHUNK:
+                gui.getFileTransfers().onChunk(message);
+                break;
+
+            case FILE_END:
+                gui.getFileTransfers().onEnd(message);
+                break;
+
+            case FILE_REF:
+                gui.getFileTransfers().onShared(message);
+                break;
+
+            case FILE_ACK:
+                gui.getFileTransfers().onAck(message);
+                break;
+
+            case FILE_RESUME:
+                gui.getFileTransfers().onResume(message);
+                break;
+
+            case FILE_NACK:
+                gui.getFileTransfers().onNack(message);
+                break;
+
+            case ERROR:
                 gui.addMessage("Local Chat", "⚠️ Server error: " + body);
                 break;
 
             default:
-                gui.addMessage("Local Chat", "⚠️ Unknown message type: " + type);
+                gui.addMessage("Local Chat", "⚠️ Unknown message type: " + message.getTypeName());
                 break;
         }
     }
@@ -0,0 +1,177 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import shared.EncodedMessage;
+import shared.Message;
+import shared.PartialFile;
+
+/**
+ * Sends one stored blob to a client as a chunked transfer over the chat
+ * connection. The client answers file-start and file-end with the byte to
+ * continue from, so a partly received file is only completed, and asks for
+ * corrupted chunks again. A chunk is read from the file only after the
+ * connection has written an earlier one, so at most {@link #WINDOW} chunks
+ * are queued for the client whatever the size of the blob. Chunks are read
+ * on the client's {@link ClientHandler#fileReader()}, so a reactor thread
+ * never waits for the disk.
+ */
+final class BlobDownload {
+    private static final int WINDOW = 8;
+
+    private final ClientHandler client;
+    private final Executor reader;
+    private final FileChannel blob;
+    private final String transfer;
+    private final String hash;
+    private final long size;
+    private final long chunkCount;
+
+    private final ByteBuffer chunk = ByteBuffer.allocate(PartialFile.CHUNK_SIZE);
+    private final Deque<Long> resends = new ArrayDeque<>();
+    private long nextSeq;
+    private boolean streaming;
+    private int credits = WINDOW;
+    private boolean pumping;
+    private boolean closed;
+
+    BlobDownload(ClientHandler client, FileChannel blob, String transfer, String hash) throws IOException {
+        this.client     = client;
+        this.reader     = client.fileReader();
+        this.blob       = blob;
+        this.transfer   = transfer;
+        this.hash       = hash;
+        this.size       = blob.size();
+        this.chunkCount = PartialFile.chunkCount(size);
+    }
+
+    void start(String fileName) {
+        client.sendMessage(Message.fileStart("", "Local Chat", transfer, fileName, size, hash));
+    }
+
+    /** Sends everything from {@code offset} on; returns false when the client is done with this file. */
+    boolean resume(long offset) {
+        synchronized (this) {
+            if (offset < 0 || offset >= size || closed) {
+                close();
+                return false;
+            }
+            nextSeq   = offset / PartialFile.CHUNK_SIZE;
+            streaming = true;
+        }
+        pump();
+        return true;
+    }
+
+    void resend(long seq) {
+        synchronized (this) {
+            if (seq < 0 || seq >= chunkCount) {
+                return;
+            }
+            resends.add(seq);
+        }
+        pump();
+    }
+
+    synchronized void close() {
+        if (!closed) {
+            closed = true;
+            try {
+                blob.close();
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void onWritten() {
+        synchronized (this) {
+            credits++;
+        }
+        pump();
+    }
+
+    private void pump() {
+        synchronized (this) {
+            if (pumping) {
+                return;
+            }
+            pumping = true;
+        }
+        reader.execute(this::sendChunks);
+    }
+
+    // a chunk the connection drops is reported as written right inside send(),
+    // so messages are sent from a loop here rather than recursively; only the
+    // window is kept under the monitor, the disk read and encoding are not
+    private void sendChunks() {
+        while (true) {
+            long seq;
+            synchronized (this) {
+                if (client.isClosed()) {
+                    close();
+                }
+                seq = closed ? -1 : take();
+                if (seq < 0) {
+                    pumping = false;
+                    return;
+                }
+            }
+            if (seq == chunkCount) {
+                client.sendMessage(Message.fileEnd("", "Local Chat", transfer, chunkCount, hash));
+                continue;
+            }
+            Message next = read(seq);
+            if (next.getType() == Message.Type.FILE_CHUNK) {
+                client.send(EncodedMessage.of(next, 1, this::onWritten));
+            } else {
+                client.sendMessage(next);
+            }
+        }
+    }
+
+    /** The chunk to send next, {@code chunkCount} for file-end, -1 when nothing may go now. */
+    private long take() {
+        if (credits == 0) {
+            return -1;
+        }
+        Long seq = resends.poll();
+        if (seq == null) {
+            if (!streaming) {
+                return -1;
+            }
+            if (nextSeq == chunkCount) {
+                streaming = false;
+                return chunkCount;
+            }
+            seq = nextSeq++;
+        }
+        credits--;
+        return seq;
+    }
+
+    // only the pumping thread reads, so the chunk buffer is not shared
+    private Message read(long seq) {
+        try {
+            chunk.clear();
+            long position = seq * PartialFile.CHUNK_SIZE;
+            int n;
+            while (chunk.hasRemaining() && (n = blob.read(chunk, position)) > 0) {
+                position += n;
+            }
+            byte[] data = new byte[chunk.position()];
+            chunk.flip().get(data);
+            return Message.fileChunk("Local Chat", transfer, seq, PartialFile.crc(data, 0, data.length),
+                    Base64.getEncoder().encodeToString(data));
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            close();
+            return Message.fileCancel("", "Local Chat", transfer);
+        }
+    }
+}
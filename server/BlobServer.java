@@ -0,0 +1,213 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bulk download listener next to the chat port. Serves the blob store over
+ * a small subset of HTTP/1.1: {@code GET /<sha256>} with an optional
+ * {@code Range: bytes=<first>-[<last>]} or {@code bytes=-<count>} header,
+ * one request per connection. The body goes from the file to the socket
+ * with {@link FileChannel#transferTo}, so it is neither base64-encoded nor
+ * copied through the heap. At most {@link ServerConfig#DOWNLOAD_CONNECTIONS}
+ * downloads are served at once; more are answered 503 right away, and a
+ * client that takes no bytes for {@link #WRITE_TIMEOUT_MS} is dropped, so
+ * it cannot hold a download slot.
+ */
+class BlobServer implements Runnable {
+    private static final int MAX_HEADER_SIZE = 8192;
+    private static final int READ_TIMEOUT_MS = 10_000;
+    private static final int WRITE_TIMEOUT_MS = 30_000;
+
+    private final BlobStore blobs;
+    private final int port;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Semaphore slots = new Semaphore(ServerConfig.DOWNLOAD_CONNECTIONS);
+
+    BlobServer(BlobStore blobs, int port) {
+        this.blobs = blobs;
+        this.port  = port;
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(port));
+            while (true) {
+                SocketChannel channel = listener.accept();
+                if (!slots.tryAcquire()) {
+                    refuse(channel);
+                    continue;
+                }
+                executor.execute(() -> {
+                    try {
+                        serve(channel);
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (SocketChannel client = channel; Selector selector = Selector.open()) {
+            client.socket().setSoTimeout(READ_TIMEOUT_MS);
+            String[] request = readHeader(client.socket().getInputStream());
+            // the socket timeout covers blocking reads only, so writes wait on a selector instead
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_WRITE);
+            if (request == null) {
+                respond(client, selector, "400 Bad Request", 0, null);
+                return;
+            }
+            String[] requestLine = request[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[0].equals("GET") || !requestLine[1].startsWith("/")) {
+                respond(client, selector, "400 Bad Request", 0, null);
+                return;
+            }
+
+            try (FileChannel blob = blobs.open(requestLine[1].substring(1))) {
+                if (blob == null) {
+                    respond(client, selector, "404 Not Found", 0, null);
+                    return;
+                }
+                long size  = blob.size();
+                long first = 0;
+                long last  = size - 1;
+                String range = header(request, "range");
+                if (range != null) {
+                    long[] bounds = parseRange(range, size);
+                    if (bounds == null) {
+                        respond(client, selector, "416 Range Not Satisfiable", 0, "bytes */" + size);
+                        return;
+                    }
+                    first = bounds[0];
+                    last  = bounds[1];
+                }
+                long length = last - first + 1;
+                if (range != null) {
+                    respond(client, selector, "206 Partial Content", length, "bytes " + first + "-" + last + "/" + size);
+                } else {
+                    respond(client, selector, "200 OK", length, null);
+                }
+                for (long sent = 0; sent < length; ) {
+                    long n = blob.transferTo(first + sent, length - sent, client);
+                    if (n == 0) {
+                        awaitWritable(selector);
+                    }
+                    sent += n;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    // the response fits the empty send buffer of a new connection, so this does not hold up accepting
+    private static void refuse(SocketChannel channel) {
+        try (SocketChannel client = channel) {
+            respond(client, null, "503 Service Unavailable", 0, null);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /** The request line and the header lines, or null when they are malformed or too long. */
+    private static String[] readHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            int b = in.read();
+            if (b < 0 || header.size() >= MAX_HEADER_SIZE) {
+                return null;
+            }
+            header.write(b);
+            if ((b == '\r' && matched % 2 == 0) || (b == '\n' && matched % 2 == 1)) {
+                matched++;
+            } else {
+                matched = b == '\r' ? 1 : 0;
+            }
+        }
+        return header.toString(StandardCharsets.ISO_8859_1).trim().split("\r\n");
+    }
+
+    private static String header(String[] request, String name) {
+        for (int i = 1; i < request.length; i++) {
+            int colon = request[i].indexOf(':');
+            if (colon > 0 && request[i].substring(0, colon).trim().toLowerCase(Locale.ROOT).equals(name)) {
+                return request[i].substring(colon + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * First and last byte of a single "bytes=first-[last]" range, or of the
+     * last count bytes for "bytes=-count"; null when it cannot be served.
+     */
+    private static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length());
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return null;
+        }
+        try {
+            if (dash == 0) {
+                long count = Long.parseLong(spec.substring(1).trim());
+                return count > 0 && size > 0 ? new long[] {Math.max(0, size - count), size - 1} : null;
+            }
+            long first = Long.parseLong(spec.substring(0, dash).trim());
+            String end = spec.substring(dash + 1).trim();
+            long last = end.isEmpty() ? size - 1 : Math.min(Long.parseLong(end), size - 1);
+            return first <= last && first < size ? new long[] {first, last} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Writes a response header; {@code selector} is null for a channel still in blocking mode. */
+    private static void respond(SocketChannel client, Selector selector, String status, long length,
+                                String contentRange) throws IOException {
+        StringBuilder response = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n")
+                .append("Content-Length: ").append(length).append("\r\n")
+                .append("Accept-Ranges: bytes\r\n");
+        if (contentRange != null) {
+            response.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        response.append("Content-Type: application/octet-stream\r\n")
+                .append("Connection: close\r\n\r\n");
+        ByteBuffer bytes = ByteBuffer.wrap(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+        while (bytes.hasRemaining()) {
+            if (client.write(bytes) == 0) {
+                awaitWritable(selector);
+            }
+        }
+    }
+
+    /** Waits for the client to take more bytes; fails when it has taken none for {@link #WRITE_TIMEOUT_MS}. */
+    private static void awaitWritable(Selector selector) throws IOException {
+        if (selector.select(WRITE_TIMEOUT_MS) == 0) {
+            throw new IOException("download stalled for " + WRITE_TIMEOUT_MS + " ms, closing");
+        }
+        selector.selectedKeys().clear();
+    }
+}
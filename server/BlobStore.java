@@ -0,0 +1,173 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import shared.PartialFile;
+
+/**
+ * Files shared to "Local Chat", each stored once in one directory under the
+ * hex SHA-256 of its content. An upload is received into a
+ * {@link PartialFile} named after the hash it was announced with, which is
+ * kept when the sender disconnects so the next upload of that content
+ * resumes it; once complete and verified it is renamed to the hash. Content
+ * already stored is not uploaded again. The directory is kept under a quota
+ * by deleting the least recently shared or fetched blobs.
+ */
+class BlobStore {
+    private static final String PART_SUFFIX = ".part";
+
+    /** Unfinished uploads older than this are deleted at startup. */
+    private static final long PART_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+
+    private final Path dir;
+    private final long quota;
+
+    // access order, so the eldest entry is the least recently used blob
+    private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> uploading = new HashSet<>();
+    private long total;
+
+    BlobStore(Path dir, long quota) throws IOException {
+        this.dir   = dir;
+        this.quota = quota;
+        Files.createDirectories(dir);
+
+        long expired = System.currentTimeMillis() - PART_MAX_AGE_MS;
+        List<Path> stored = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (PartialFile.isHash(name)) {
+                    stored.add(file);
+                } else if (lastModified(file) < expired) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        stored.sort(Comparator.comparingLong(BlobStore::lastModified));
+        for (Path file : stored) {
+            long size = Files.size(file);
+            blobs.put(file.getFileName().toString(), size);
+            total += size;
+        }
+    }
+
+    /** Whether the content is stored; counts as a use of it. */
+    synchronized boolean contains(String hash) {
+        return blobs.get(hash) != null;
+    }
+
+    /**
+     * Starts or resumes receiving content announced with {@code hash} and
+     * {@code size}. Only one connection at a time may upload a given content.
+     */
+    synchronized Upload begin(String hash, String fileName, long size) throws IOException {
+        if (!PartialFile.isHash(hash)) {
+            throw new IOException("bad content hash");
+        }
+        if (size > quota) {
+            throw new IOException("file is larger than the store quota of " + quota + " bytes");
+        }
+        if (!uploading.add(hash)) {
+            throw new IOException("this file is already being uploaded");
+        }
+        try {
+            return new Upload(hash, fileName, PartialFile.open(dir.resolve(hash + PART_SUFFIX), size));
+        } catch (IOException e) {
+            uploading.remove(hash);
+            throw e;
+        }
+    }
+
+    /**
+     * Stores a complete upload under its hash once it checks out, and evicts
+     * old blobs to get back under the quota. A corrupt upload is deleted.
+     */
+    void commit(Upload upload) throws IOException {
+        String hash = upload.file.hash();
+        synchronized (this) {
+            uploading.remove(upload.hash);
+            if (!hash.equals(upload.hash)) {
+                upload.file.delete();
+                throw new IOException("checksum mismatch");
+            }
+            upload.file.moveTo(dir.resolve(hash));
+            blobs.put(hash, upload.file.size());
+            total += upload.file.size();
+
+            Iterator<Map.Entry<String, Long>> eldest = blobs.entrySet().iterator();
+            while (total > quota && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().equals(hash)) {
+                    continue;
+                }
+                Files.deleteIfExists(dir.resolve(entry.getKey()));
+                total -= entry.getValue();
+                eldest.remove();
+            }
+        }
+    }
+
+    /** The sender went away: keeps what was received for its next attempt. */
+    synchronized void suspend(Upload upload) {
+        uploading.remove(upload.hash);
+        try {
+            upload.file.suspend();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    synchronized void discard(Upload upload) {
+        uploading.remove(upload.hash);
+        try {
+            upload.file.delete();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens a stored blob for reading, or returns null when it is not (or no
+     * longer) stored. An open blob stays readable even if it is evicted.
+     */
+    synchronized FileChannel open(String hash) throws IOException {
+        if (!PartialFile.isHash(hash) || blobs.get(hash) == null) {
+            return null;
+        }
+        return FileChannel.open(dir.resolve(hash), StandardOpenOption.READ);
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /** One content being received into the store. Used by a single connection's reading thread. */
+    static final class Upload {
+        final String hash;
+        final String fileName;
+        final PartialFile file;
+
+        private Upload(String hash, String fileName, PartialFile file) {
+            this.hash     = hash;
+            this.fileName = fileName;
+            this.file     = file;
+        }
+    }
+}
@@ -2,169 +2,582 @@ package server;
 
 import java.io.*;
 import java.net.Socket;
-import shared.XMLMessageBuilder;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import shared.EncodedMessage;
+import shared.Message;
+import shared.MessageAssembler;
+import shared.MessageReader;
+import shared.WireFormat;
 
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable {
+    private static final Outgoing CLOSE = new Outgoing(null, null, 0);
+
+    protected final Server server;
+    protected final ConnectionMetrics metrics = new ConnectionMetrics();
     private Socket socket;
-    private Server server;
-    private PrintWriter out;
-    private BufferedReader in;
-    private String userName;
+    private OutputStream out;
+    private MessageReader in;
+    private volatile String userName;
+    private volatile String userKey;
     private String mood = "😊";
+    /** Whether the client asked at join for the roster and presence deltas rather than a join message per user. */
+    private volatile boolean presenceUpdates;
+
+    /** Format of everything queued from now on; switched once, right after a binary join. */
+    protected volatile WireFormat format = WireFormat.LINE;
+
+    private Executor writerExecutor;
+    private BlockingQueue<Outgoing> outbox;
+    private volatile boolean closed;
+    /** Whether a join is waiting for its turn; the client sends nothing else until it is answered. */
+    private volatile boolean joinWaiting;
+    /** Held by a delayed join and by the disconnect, so the join either ends before it or sees the handler closed. */
+    private final ReentrantLock joinLock = new ReentrantLock();
+
+    /** Files being shared to "Local Chat" by this client, by transfer id; used by one file task at a time. */
+    private final Map<String, BlobStore.Upload> shares = new HashMap<>();
+    /** Stored files being sent to this client, by transfer id. */
+    private final Map<String, BlobDownload> downloads = new ConcurrentHashMap<>();
 
     public ClientHandler(Socket socket, Server server) {
+        this(socket, server, task -> new Thread(task).start());
+    }
+
+    /**
+     * Outgoing messages are put into a bounded queue and written by a
+     * separate task on {@code writerExecutor}, so a slow receiver never
+     * blocks this handler's reader or the thread that queued the message.
+     */
+    public ClientHandler(Socket socket, Server server, Executor writerExecutor) {
         this.socket = socket;
         this.server = server;
+        this.writerExecutor = writerExecutor;
+        this.outbox = new ArrayBlockingQueue<>(ServerConfig.OUTBOX_CAPACITY);
+    }
+
+    protected ClientHandler(Server server) {
+        this.server = server;
     }
 
     public String getUserName() {
         return userName;
     }
 
+    /** Case-folded name, the key of this client in the {@link SessionRegistry}. */
+    String getUserKey() {
+        return userKey;
+    }
+
+    void setUserName(String userName) {
+        this.userKey  = userName != null ? SessionRegistry.key(userName) : null;
+        this.userName = userName;
+    }
+
     public String getMood() {
         return mood;
     }
 
-    public void sendMessage(String message) {
-        out.println(message);
+    boolean acceptsPresence() {
+        return presenceUpdates;
+    }
+
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void sendMessage(Message message) {
+        send(EncodedMessage.of(message));
+    }
+
+    /** Queues an encoded message for this client. Never blocks and never touches the socket. */
+    public void send(EncodedMessage message) {
+        long start = System.nanoTime();
+        Outgoing outgoing = new Outgoing(message, format, start);
+        if (closed) {
+            message.written();
+        } else if (outbox.offer(outgoing)) {
+            metrics.onEnqueued(System.nanoTime() - start);
+            // the writer may have stopped and drained the outbox in between
+            if (closed && outbox.remove(outgoing)) {
+                message.written();
+            }
+        } else {
+            message.written();
+            metrics.onDropped();
+            if (metrics.getDropped() == 1) {
+                System.err.println("Outbound queue of " + userName + " is full, disconnecting");
+                closeSocket();
+            }
+        }
+    }
+
+    /** Whether this connection has been closed; messages sent to it now are dropped. */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void close() {
+        closed = true;
+        if (!outbox.offer(CLOSE)) {
+            closeSocket();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
     public void run() {
         try {
-            in  = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
-
-            String message;
-            while ((message = in.readLine()) != null) {
-                String type       = XMLMessageBuilder.parseType(message);
-                String from       = XMLMessageBuilder.parseSender(message);
-                String to         = XMLMessageBuilder.parseReceiver(message);
-                String body       = XMLMessageBuilder.parseBody(message);
-                String parsedMood = XMLMessageBuilder.parseMood(message);
-
-                switch (type) {
-                    case "join": {
-                        String requestedName = from;
-                        String requestedMood = (parsedMood != null && !parsedMood.isEmpty())
-                                ? parsedMood
-                                : "😊";
-
-                        if (server.isUserNameTaken(requestedName)) {
-                            out.println("<message type=\"error\"><body>name already taken</body></message>");
-                            socket.close();
-                            return;
-                        }
-
-                        this.userName = requestedName;
-                        this.mood     = requestedMood;
-
-                        if (server.addUser(this)) {
-                            for (ClientHandler existingHandler : server.getClientHandlers()) {
-                                String existingName = existingHandler.getUserName();
-                                if (!existingName.equalsIgnoreCase(this.userName)) {
-                                    String existingMood = existingHandler.getMood();
-                                    this.sendMessage(
-                                        XMLMessageBuilder.buildJoinMessage(existingName, existingMood)
-                                    );
-                                }
-                            }
-
-                            String joinXml = XMLMessageBuilder.buildJoinMessage(userName, mood);
-                            server.broadcast(joinXml);
-                        }
-                        break;
+            in  = new MessageReader(socket.getInputStream(), newAssembler());
+            out = new BufferedOutputStream(socket.getOutputStream());
+            writerExecutor.execute(this::writeLoop);
+
+            Message message;
+            while ((message = in.readMessage()) != null) {
+                if (!handleMessage(message)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                in.reset();
+            }
+            disconnect();
+        }
+    }
+
+    /**
+     * Reading side limits of this connection: at most
+     * {@link ServerConfig#MEMORY_BUDGET} bytes of a message on the heap,
+     * larger ones through a temp file, and nothing above
+     * {@link ServerConfig#MAX_MESSAGE_SIZE}.
+     */
+    protected MessageAssembler newAssembler() {
+        return new MessageAssembler(ServerConfig.MAX_MESSAGE_SIZE, ServerConfig.MEMORY_BUDGET,
+                new MessageAssembler.Listener() {
+                    @Override
+                    public void onSpilled(long size) {
+                        metrics.onSpilled(size);
                     }
 
-                    case "broadcast": {
-                        server.broadcast(message);
-                        break;
+                    @Override
+                    public void onRejected(long size) {
+                        metrics.onRejected();
+                        sendMessage(Message.error("message too large: " + size + " bytes, limit "
+                                + ServerConfig.MAX_MESSAGE_SIZE));
                     }
+                });
+    }
 
-                    case "private": {
-                        server.sendPrivateMessage(to, message);
-                        this.sendMessage(message);
+    private void writeLoop() {
+        try {
+            while (true) {
+                Outgoing next = outbox.take();
+                if (next == CLOSE) {
+                    break;
+                }
+                try {
+                    next.message.writeTo(out, next.format);
+                } finally {
+                    next.message.written();
+                }
+                metrics.onWritten(System.nanoTime() - next.queuedAt);
+                if (outbox.isEmpty()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closed = true;
+            closeSocket();
+            Outgoing left;
+            while ((left = outbox.poll()) != null) {
+                if (left != CLOSE) {
+                    left.message.written();
+                }
+            }
+        }
+    }
+
+    /** Claims the requested name and answers the join; false when the name is taken and the connection is dropped. */
+    protected boolean join(Message message) {
+        joinWaiting = false;
+        String parsedMood = message.getMood();
+        setUserName(message.getFrom());
+        this.mood = (parsedMood != null && !parsedMood.isEmpty()) ? parsedMood : "😊";
+        this.presenceUpdates = message.accepts(Message.Type.PRESENCE);
+        boolean frames = ServerConfig.FRAMES && message.isFramesRequest();
+
+        // the client takes the first answer to its join for the switch to frames, so it goes before the roster
+        boolean claimed = server.addUser(this, () -> {
+            if (frames) {
+                sendMessage(Message.framesAccepted());
+                useFrames();
+            }
+        });
+        if (!claimed) {
+            setUserName(null);
+            sendMessage(Message.error("name already taken"));
+            close();
+            return false;
+        }
+
+        server.userJoined(this);
+        return true;
+    }
+
+    /**
+     * Lets a join in after {@code delayNanos}, once its token is due. The
+     * join is handled on the server's timer; the reading thread goes back
+     * to reading meanwhile, so a client that gives up waiting is closed and
+     * never joined. The client sends nothing before its join is answered,
+     * so the switch to frames cannot come in the middle of a message.
+     */
+    protected boolean joinLater(Message message, long delayNanos) {
+        server.schedule(() -> {
+            joinLock.lock();
+            try {
+                if (!isClosed()) {
+                    join(message);
+                }
+            } finally {
+                joinLock.unlock();
+            }
+        }, delayNanos);
+        return true;
+    }
+
+    /**
+     * Switches both directions to binary frames once the join is accepted.
+     * The client sends nothing between its join and the answer, so the next
+     * message read is already expected as a frame; the client only starts
+     * sending frames after it has seen the acknowledgement queued just before.
+     */
+    protected void useFrames() {
+        format = WireFormat.FRAME;
+        in.setFormat(WireFormat.FRAME);
+    }
+
+    protected void disconnect() {
+        joinLock.lock();
+        try {
+            closeTransfers();
+            if (userName != null) {
+                server.removeUser(this);
+            }
+            close();
+        } finally {
+            joinLock.unlock();
+        }
+    }
+
+    /**
+     * Handles one incoming message. Returns false when the connection
+     * has to be dropped (the handler is already closed in that case).
+     */
+    protected boolean handleMessage(Message message) {
+        if (joinWaiting) {
+            return true;
+        }
+        // only the routing header is decoded here; payloads are relayed as received
+        String to = message.getTo();
+
+        switch (message.getType()) {
+            case JOIN: {
+                if (userName != null || joinWaiting) {
+                    break;
+                }
+                long wait = server.reserveJoin();
+                if (wait > 0) {
+                    joinWaiting = true;
+                    if (message.accepts(Message.Type.WAIT)) {
+                        sendMessage(Message.joinWait(TimeUnit.NANOSECONDS.toMillis(wait)));
+                    }
+                    return joinLater(message, wait);
+                }
+                return join(message);
+            }
+
+            case ROSTER: {
+                if (userName != null) {
+                    server.sendRoster(this);
+                }
+                break;
+            }
+
+            case BROADCAST: {
+                server.broadcast(message);
+                break;
+            }
+
+            case PRIVATE: {
+                server.sendPrivateMessage(to, message);
+                this.sendMessage(message);
+                break;
+            }
+
+            case HUG: {
+                if (to != null && !to.isEmpty()) {
+                    server.sendPrivateMessage(to, message);
+                }
+                this.sendMessage(message);
+                break;
+            }
+
+            case RENAME: {
+                String body = message.getBody();
+                if (userName != null && body != null && body.contains("=>")) {
+                    String[] parts = body.split("=>");
+                    if (parts.length != 2 || parts[1].trim().isEmpty()) {
                         break;
                     }
+                    String oldName = parts[0].trim();
+                    String newName = parts[1].trim();
+
+                    if (oldName.equalsIgnoreCase(userName) && !server.renameUser(this, newName)) {
+                        sendMessage(Message.error("the name " + newName + " is already taken"));
+                    }
+                }
+                break;
+            }
 
-                    case "hug": {
-                        if (to != null && !to.isEmpty()) {
-                            server.sendPrivateMessage(to, message);
-                        }
+            case MOOD: {
+                if (userName == null) {
+                    break;
+                }
+                String parsedMood = message.getMood();
+                this.mood = (parsedMood != null && !parsedMood.isEmpty()) ? parsedMood : this.mood;
+                server.moodChanged(this);
+                break;
+            }
+
+            case FILE: {
+                String recipient = to;
+
+                if (message.has(Message.Field.FILENAME) && message.has(Message.Field.FILEDATA)) {
+                    if ("Local Chat".equalsIgnoreCase(recipient)) {
+                        server.broadcast(message);
+                    } else {
+                        server.sendPrivateMessage(recipient, message);
                         this.sendMessage(message);
-                        break;
                     }
+                }
+                break;
+            }
+
+            case EMOTION: {
+                String recipient = to;
+                if ("Local Chat".equalsIgnoreCase(recipient)) {
+                    server.broadcast(message);
+                } else {
+                    server.sendPrivateMessage(recipient, message);
+                    this.sendMessage(message);
+                }
+                break;
+            }
+
+            case FILE_START:
+            case FILE_CHUNK:
+            case FILE_END: {
+                if (userName == null) {
+                    break;
+                }
+                if ("Local Chat".equalsIgnoreCase(to)) {
+                    runFileTask(() -> receiveShare(message));
+                } else {
+                    server.relayTransfer(this, message);
+                }
+                break;
+            }
+
+            case FILE_RESUME:
+            case FILE_NACK: {
+                if (userName == null) {
+                    break;
+                }
+                if (to.isEmpty()) {
+                    controlDownload(message);
+                } else {
+                    server.relayTransfer(this, message);
+                }
+                break;
+            }
+
+            case FILE_FETCH: {
+                if (userName != null) {
+                    server.sendBlob(this, message);
+                }
+                break;
+            }
 
-                    case "rename": {
-                        if (body != null && body.contains("=>")) {
-                            String[] parts = body.split("=>");
-                            String oldName = parts[0].trim();
-                            String newName = parts[1].trim();
-
-                            if (server.renameUser(oldName, newName)) {
-                                this.userName = newName;
-                                String renameXml = XMLMessageBuilder.buildRenameMessage(oldName, newName);
-                                server.broadcast(renameXml);
-                            }
-                        }
+            case LEAVE:
+            case EXIT: {
+                break;
+            }
+
+            default: {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Receives a file shared to "Local Chat" into the blob store. Each chunk
+     * is acknowledged once stored and a corrupted one is asked for again instead;
+     * file-start and file-end are answered with the byte to continue from.
+     * Once the file is complete and matches its hash, the others are only
+     * told its hash, name and size.
+     */
+    private void receiveShare(Message message) {
+        String transfer = message.get(Message.Field.TRANSFER);
+        BlobStore blobs = server.getBlobStore();
+        BlobStore.Upload upload = shares.get(transfer);
+        try {
+            switch (message.getType()) {
+                case FILE_START: {
+                    if (upload != null) {
+                        sendMessage(Message.fileResume("", userName, transfer, upload.file.resumeOffset()));
                         break;
                     }
-
-                    case "mood": {
-                        this.mood = (parsedMood != null && !parsedMood.isEmpty()) ? parsedMood : this.mood;
-                        String moodXml = XMLMessageBuilder.buildMoodChangeMessage(userName, mood);
-                        server.broadcast(moodXml);
+                    long size = Long.parseLong(message.get(Message.Field.SIZE));
+                    if (blobs.contains(transfer)) {
+                        sendMessage(Message.fileResume("", userName, transfer, size));
+                        server.shareFile(this, Message.fileRef(userName, message.getFileName(), size, transfer,
+                                ServerConfig.DOWNLOAD_PORT));
                         break;
                     }
-
-                    case "file": {
-                        String fileName = XMLMessageBuilder.parseFileName(message);
-                        String fileData = XMLMessageBuilder.parseFileContent(message);
-                        String recipient = to;
-
-                        if (fileName != null && fileData != null) {
-                            if ("Local Chat".equalsIgnoreCase(recipient)) {
-                                server.broadcast(message);
-                            } else {
-                                server.sendPrivateMessage(recipient, message);
-                                this.sendMessage(message);
-                            }
-                        }
+                    upload = blobs.begin(transfer, message.getFileName(), size);
+                    shares.put(transfer, upload);
+                    sendMessage(Message.fileResume("", userName, transfer, upload.file.resumeOffset()));
+                    break;
+                }
+                case FILE_CHUNK: {
+                    if (upload == null) {
                         break;
                     }
-
-                    case "emotion": {
-                        String recipient = to;
-                        if ("Local Chat".equalsIgnoreCase(recipient)) {
-                            server.broadcast(message);
-                        } else {
-                            server.sendPrivateMessage(recipient, message);
-                            this.sendMessage(message);
-                        }
+                    long seq = Long.parseLong(message.get(Message.Field.SEQ));
+                    byte[] data = Base64.getDecoder().decode(message.getFileData());
+                    if (!upload.file.write(seq, data, Long.parseLong(message.get(Message.Field.CRC)))) {
+                        sendMessage(Message.fileNack("", userName, transfer, seq));
+                    } else {
+                        sendMessage(Message.fileAck(transfer, message.get(Message.Field.SEQ)));
+                    }
+                    break;
+                }
+                default: {
+                    if (upload == null) {
                         break;
                     }
-
-                    case "leave":
-                    case "exit": {
+                    if (!message.has(Message.Field.CHECKSUM)) {
+                        shares.remove(transfer);
+                        blobs.suspend(upload);
                         break;
                     }
-
-                    default: {
+                    if (!upload.file.isComplete()) {
+                        sendMessage(Message.fileResume("", userName, transfer, upload.file.resumeOffset()));
                         break;
                     }
+                    shares.remove(transfer);
+                    blobs.commit(upload);
+                    sendMessage(Message.fileResume("", userName, transfer, upload.file.size()));
+                    server.shareFile(this, Message.fileRef(userName, upload.fileName, upload.file.size(), transfer,
+                            ServerConfig.DOWNLOAD_PORT));
+                    break;
                 }
             }
-        } catch (IOException e) {
-            System.err.println("Error: " + e.getMessage());
-        } finally {
-            if (userName != null) {
-                server.removeUser(this);
+        } catch (IOException | IllegalArgumentException e) {
+            if (upload != null && shares.remove(transfer) != null) {
+                blobs.discard(upload);
             }
-            try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            sendMessage(Message.fileResume("", userName, transfer, -1));
+            sendMessage(Message.error("file not shared: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * Runs the disk work of files shared to "Local Chat", in the order the
+     * messages arrived. The blocking transports do it right on the reading
+     * thread; a reactor hands it on, see {@link NioClientHandler}.
+     */
+    protected void runFileTask(Runnable task) {
+        task.run();
+    }
+
+    /** Where stored files sent to this client are read; the blocking transports read them on the calling thread. */
+    Executor fileReader() {
+        return Runnable::run;
+    }
+
+    /** Reaction of a client to a file this server sends it: where to continue from, or a chunk to send again. */
+    private void controlDownload(Message message) {
+        String transfer = message.get(Message.Field.TRANSFER);
+        BlobDownload download = downloads.get(transfer);
+        if (download == null) {
+            return;
+        }
+        try {
+            if (message.getType() == Message.Type.FILE_NACK) {
+                download.resend(Long.parseLong(message.get(Message.Field.SEQ)));
+            } else if (!download.resume(Long.parseLong(message.get(Message.Field.OFFSET)))) {
+                downloads.remove(transfer);
+            }
+        } catch (NumberFormatException e) {
+            downloads.remove(transfer);
+            download.close();
+        }
+    }
+
+    void addDownload(String transfer, BlobDownload download) {
+        BlobDownload previous = downloads.put(transfer, download);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /** The connection is closing: keeps partial uploads for a resume and stops downloads. */
+    protected void closeTransfers() {
+        runFileTask(() -> {
+            for (BlobStore.Upload upload : shares.values()) {
+                server.getBlobStore().suspend(upload);
             }
+            shares.clear();
+        });
+        for (BlobDownload download : downloads.values()) {
+            download.close();
+        }
+        downloads.clear();
+    }
+
+    private static final class Outgoing {
+        final EncodedMessage message;
+        final WireFormat format;
+        final long queuedAt;
+
+        Outgoing(EncodedMessage message, WireFormat format, long queuedAt) {
+            this.message  = message;
+            this.format   = format;
+            this.queuedAt = queuedAt;
         }
     }
 }
@@ -0,0 +1,112 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Outbound queue and read statistics of one connection. Updated by the
+ * threads that queue messages, by the connection's writer and by its reader,
+ * read by the server monitor.
+ */
+public class ConnectionMetrics {
+    private final AtomicInteger depth    = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder dropped  = new LongAdder();
+    private final LongAdder enqueueNanos    = new LongAdder();
+    private final AtomicLong maxEnqueueNanos = new AtomicLong();
+    private final LongAdder waitNanos     = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder spilled      = new LongAdder();
+    private final LongAdder spilledBytes = new LongAdder();
+    private final LongAdder rejected     = new LongAdder();
+
+    /** A message was accepted into the queue; {@code nanos} is how long the enqueue call took. */
+    void onEnqueued(long nanos) {
+        int d = depth.incrementAndGet();
+        maxDepth.accumulateAndGet(d, Math::max);
+        enqueued.increment();
+        enqueueNanos.add(nanos);
+        maxEnqueueNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /** The queue was full and the message was refused. */
+    void onDropped() {
+        dropped.increment();
+    }
+
+    /** A message left the queue and was written; {@code nanos} is the time it spent queued. */
+    void onWritten(long nanos) {
+        depth.decrementAndGet();
+        written.increment();
+        waitNanos.add(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /** An incoming message over the memory budget was read through a temp file. */
+    void onSpilled(long size) {
+        spilled.increment();
+        spilledBytes.add(size);
+    }
+
+    /** An incoming message over the size limit was skipped. */
+    void onRejected() {
+        rejected.increment();
+    }
+
+    public int getDepth() {
+        return depth.get();
+    }
+
+    public int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSpilled() {
+        return spilled.sum();
+    }
+
+    public long getSpilledBytes() {
+        return spilledBytes.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public double getAverageEnqueueMicros() {
+        long n = enqueued.sum();
+        return n == 0 ? 0 : enqueueNanos.sum() / 1000.0 / n;
+    }
+
+    public double getMaxEnqueueMicros() {
+        return maxEnqueueNanos.get() / 1000.0;
+    }
+
+    public double getAverageWaitMillis() {
+        long n = written.sum();
+        return n == 0 ? 0 : waitNanos.sum() / 1_000_000.0 / n;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "queue %d (max %d), enqueue avg %.1f µs / max %.1f µs, wait avg %.1f ms / max %.1f ms, dropped %d, "
+                        + "spilled %d (%.1f MB), rejected %d",
+                getDepth(), getMaxDepth(),
+                getAverageEnqueueMicros(), getMaxEnqueueMicros(),
+                getAverageWaitMillis(), getMaxWaitMillis(),
+                getDropped(),
+                getSpilled(), getSpilledBytes() / 1048576.0, getRejected());
+    }
+}
@@ -0,0 +1,42 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket for joins: up to {@code burst} at once, then {@code rate} a
+ * second. A join that finds no token reserves the next one instead of
+ * being refused, and is told how long to wait for it, so after a restart
+ * the clients reconnecting all at once are let in first come, first served
+ * at a steady rate.
+ */
+class JoinLimiter {
+    private final long intervalNanos;
+    private final long burstNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /** When the next token is free; up to a burst of tokens in the past means they are all free now. */
+    private long nextFree;
+
+    /** A {@code rate} of 0 or less lets every join in at once. */
+    JoinLimiter(int rate, int burst) {
+        this.intervalNanos = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        this.burstNanos    = intervalNanos * Math.max(1, burst);
+        this.nextFree      = System.nanoTime() - burstNanos;
+    }
+
+    /** Takes a token; returns how many nanoseconds from now it may be used, 0 when right away. */
+    long reserve() {
+        if (intervalNanos == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            nextFree = Math.max(nextFree, now - burstNanos) + intervalNanos;
+            return Math.max(0, nextFree - now);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import shared.EncodedMessage;
+import shared.Message;
+import shared.MessageAssembler;
+import shared.WireFormat;
+
+/**
+ * Client connection served by a {@link Reactor}. Reads are split into lines
+ * or frames by a per-connection {@link MessageAssembler} and passed to the same
+ * {@link ClientHandler#handleMessage(Message)} the blocking transport uses.
+ * Outgoing messages may be queued from any thread; the socket itself is
+ * only written on the reactor thread.
+ */
+class NioClientHandler extends ClientHandler {
+    private final SocketChannel channel;
+    private final Reactor reactor;
+    private SelectionKey key;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private final MessageAssembler assembler = newAssembler();
+
+    private final Queue<Pending> outbound = new ConcurrentLinkedQueue<>();
+    /** Free places in {@link #outbound}; taken before a message is queued and given back once it is written or dropped. */
+    private final Semaphore slots = new Semaphore(ServerConfig.OUTBOX_CAPACITY);
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean closeAfterFlush;
+    /** The last file task handed on; used on the reactor thread only. */
+    private CompletableFuture<Void> fileTasks = CompletableFuture.completedFuture(null);
+
+    NioClientHandler(SocketChannel channel, Server server, Reactor reactor) {
+        super(server);
+        this.channel = channel;
+        this.reactor = reactor;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public void send(EncodedMessage message) {
+        long start = System.nanoTime();
+        if (closed.get()) {
+            message.written();
+            return;
+        }
+        if (!slots.tryAcquire()) {
+            message.written();
+            metrics.onDropped();
+            if (metrics.getDropped() == 1) {
+                System.err.println("Outbound queue of " + getUserName() + " is full, disconnecting");
+                reactor.execute(this::disconnect);
+            }
+            return;
+        }
+        Pending pending = new Pending(message, message.buffer(format), start);
+        outbound.add(pending);
+        // the connection may have closed and drained the outbox in between
+        if (closed.get() && outbound.remove(pending)) {
+            slots.release();
+            message.written();
+            return;
+        }
+        metrics.onEnqueued(System.nanoTime() - start);
+        scheduleFlush();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public void close() {
+        closeAfterFlush = true;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (reactor.inReactorThread()) {
+                flush();
+            } else {
+                reactor.execute(this::flush);
+            }
+        }
+    }
+
+    void onReadable() {
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            disconnect();
+            return;
+        }
+        if (read < 0) {
+            disconnect();
+            return;
+        }
+
+        readBuffer.flip();
+        try {
+            while (readBuffer.hasRemaining()) {
+                Message message = assembler.next(readBuffer);
+                if (message == null) {
+                    break;
+                }
+                if (!handleMessage(message)) {
+                    readBuffer.clear();
+                    if (key.isValid()) {
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    }
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            disconnect();
+            return;
+        }
+        readBuffer.clear();
+    }
+
+    /**
+     * Lets a join in after {@code delayNanos} without holding up the reactor.
+     * The join is handled on the reactor thread, as if it had just been read;
+     * reading goes on meanwhile, so a client that gives up waiting is closed
+     * and never joined.
+     */
+    @Override
+    protected boolean joinLater(Message message, long delayNanos) {
+        server.schedule(() -> reactor.execute(() -> {
+            if (!closed.get()) {
+                join(message);
+            }
+        }), delayNanos);
+        return true;
+    }
+
+    /**
+     * Decoding, writing and hashing a shared file would hold up every
+     * connection of this reactor, so they run on the server's file threads,
+     * each task after the one before it. The client has only a few chunks
+     * unacknowledged at a time, so the tasks queued stay few.
+     */
+    @Override
+    protected void runFileTask(Runnable task) {
+        fileTasks = fileTasks.thenRunAsync(task, server.getFileExecutor()).exceptionally(e -> {
+            System.err.println("Error: " + e.getMessage());
+            return null;
+        });
+    }
+
+    @Override
+    Executor fileReader() {
+        return server.getFileExecutor();
+    }
+
+    @Override
+    protected void useFrames() {
+        format = WireFormat.FRAME;
+        assembler.setFormat(WireFormat.FRAME);
+    }
+
+    void onWritable() {
+        flushScheduled.set(true);
+        flush();
+    }
+
+    private void flush() {
+        if (closed.get()) {
+            return;
+        }
+        try {
+            Pending next;
+            while ((next = outbound.peek()) != null) {
+                channel.write(next.data);
+                if (next.data.hasRemaining()) {
+                    interestWrite(true);
+                    return;
+                }
+                outbound.poll();
+                slots.release();
+                next.message.written();
+                metrics.onWritten(System.nanoTime() - next.queuedAt);
+            }
+            interestWrite(false);
+            flushScheduled.set(false);
+            // a message queued between the last poll and the reset above would be stranded
+            if (!outbound.isEmpty()) {
+                scheduleFlush();
+            } else if (closeAfterFlush) {
+                closeNow();
+            }
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            disconnect();
+        }
+    }
+
+    private void interestWrite(boolean on) {
+        if (key != null && key.isValid()) {
+            int ops = on
+                    ? key.interestOps() | SelectionKey.OP_WRITE
+                    : key.interestOps() & ~SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+    }
+
+    @Override
+    protected void disconnect() {
+        if (closed.get()) {
+            return;
+        }
+        closeTransfers();
+        if (getUserName() != null) {
+            server.removeUser(this);
+        }
+        assembler.reset();
+        closeNow();
+    }
+
+    private void closeNow() {
+        if (closed.compareAndSet(false, true)) {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            Pending left;
+            while ((left = outbound.poll()) != null) {
+                slots.release();
+                left.message.written();
+            }
+        }
+    }
+
+    private static final class Pending {
+        final EncodedMessage message;
+        final ByteBuffer data;
+        final long queuedAt;
+
+        Pending(EncodedMessage message, ByteBuffer data, long queuedAt) {
+            this.message  = message;
+            this.data     = data;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
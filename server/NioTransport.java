@@ -0,0 +1,71 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking transport: one acceptor (the caller of {@link #run()})
+ * hands accepted channels round-robin to a fixed set of reactors.
+ */
+class NioTransport {
+    private final Server server;
+    private final int port;
+    private final Reactor[] reactors;
+
+    NioTransport(Server server, int port, int reactorCount) throws IOException {
+        this.server   = server;
+        this.port     = port;
+        this.reactors = new Reactor[Math.max(1, reactorCount)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(server);
+        }
+    }
+
+    void run() throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i].start("reactor-" + i);
+        }
+        try (ServerSocketChannel acceptor = ServerSocketChannel.open()) {
+            acceptor.bind(new InetSocketAddress(port), ServerConfig.ACCEPT_BACKLOG);
+            server.logStatus("🌐 Server started on port: " + port + " (nio, " + reactors.length + " reactors)");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = acceptor.accept();
+                } catch (IOException e) {
+                    if (!acceptor.isOpen()) {
+                        throw e;
+                    }
+                    Server.acceptFailed(e);
+                    continue;
+                }
+                if (!configure(channel)) {
+                    continue;
+                }
+                reactors[next].register(channel);
+                next = (next + 1) % reactors.length;
+            }
+        }
+    }
+
+    /** Makes an accepted channel non-blocking; one that cannot be is closed and left out. */
+    private static boolean configure(SocketChannel channel) {
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                System.err.println("Error: " + ex.getMessage());
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import shared.EncodedMessage;
+import shared.Message;
+import shared.PresenceChange;
+
+/**
+ * Collects joins, leaves, mood changes and renames for a short window and
+ * sends the clients that asked for them at join one
+ * {@link Message.Type#PRESENCE} delta for all of them,
+ * keeping only the latest state of each user: a user flipping moods ten
+ * times costs one entry, and one who joins and leaves again within the
+ * window costs nothing.
+ *
+ * Every delta moves the roster to the next version. A client starts from the
+ * version of the roster it got at join and asks for the roster again when a
+ * delta does not follow on from what it has. A client's name is claimed and
+ * its roster queued under the lock the deltas are sent under, so it gets the
+ * roster and the deltas after it in version order.
+ */
+class PresenceAggregator {
+    private final SessionRegistry sessions;
+    private final long windowMillis;
+    private final ScheduledExecutorService timer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // guarded by lock: who is online as of version, by case-folded name, and what has changed since
+    private final Map<String, PresenceChange> online = new LinkedHashMap<>();
+    private final Map<String, PresenceChange> pending = new LinkedHashMap<>();
+    private final Set<String> renamedTo = new HashSet<>();
+    private long version;
+    private long renames;
+    private boolean flushScheduled;
+
+    /** A {@code windowMillis} of 0 sends a delta for every change right away; otherwise {@code timer} sends them. */
+    PresenceAggregator(SessionRegistry sessions, long windowMillis, ScheduledExecutorService timer) {
+        this.sessions     = sessions;
+        this.windowMillis = windowMillis;
+        this.timer        = timer;
+    }
+
+    void online(String name, String mood) {
+        // moved to the end, so it comes after any earlier rename to this name
+        String key = SessionRegistry.key(name);
+        lock.lock();
+        try {
+            pending.remove(key);
+            pending.put(key, PresenceChange.online(name, mood));
+            changed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void offline(String name) {
+        String key = SessionRegistry.key(name);
+        lock.lock();
+        try {
+            pending.remove(key);
+            // someone who came and went within the window was never announced
+            if (online.containsKey(key) || renamedTo.contains(key)) {
+                pending.put(key, PresenceChange.offline(name));
+                changed();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Renames are kept in order and never merged: the client moves the chat with the user at each. */
+    void renamed(String oldName, String newName, String mood) {
+        lock.lock();
+        try {
+            pending.put(">" + (renames++), PresenceChange.renamed(oldName, newName));
+            String key = SessionRegistry.key(newName);
+            renamedTo.add(key);
+            pending.remove(key);
+            pending.put(key, PresenceChange.online(newName, mood));
+            changed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Binds the client's name, see {@link SessionRegistry#claim}, runs
+     * {@code accepted} to answer the join and queues the roster for a client
+     * that asked for it, in that order. A delta goes out either before the
+     * client is bound, and is in its roster, or after the roster.
+     */
+    boolean claim(ClientHandler client, Runnable accepted) {
+        lock.lock();
+        try {
+            if (!sessions.claim(client)) {
+                return false;
+            }
+            accepted.run();
+            if (client.acceptsPresence()) {
+                client.sendMessage(roster());
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Queues the roster as of the last delta sent; the changes since come with the next one. */
+    void sendRoster(ClientHandler client) {
+        lock.lock();
+        try {
+            client.sendMessage(roster());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Message roster() {
+        Map<String, String> moods = new LinkedHashMap<>();
+        for (PresenceChange user : online.values()) {
+            moods.put(user.getName(), user.getMood());
+        }
+        return Message.roster(version, moods);
+    }
+
+    private void changed() {
+        if (windowMillis <= 0) {
+            flush();
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            timer.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        lock.lock();
+        try {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            for (PresenceChange change : pending.values()) {
+                String key = SessionRegistry.key(change.getName());
+                switch (change.getKind()) {
+                    case ONLINE:
+                        online.put(key, change);
+                        break;
+                    case OFFLINE:
+                    case RENAMED:
+                        online.remove(key);
+                        break;
+                }
+            }
+            version++;
+            EncodedMessage delta = EncodedMessage.of(Message.presence(version, new ArrayList<>(pending.values())));
+            pending.clear();
+            renamedTo.clear();
+            // queuing never blocks, so each client gets this delta before any later roster or delta
+            sessions.forEach(client -> {
+                if (client.acceptsPresence()) {
+                    client.send(delta);
+                }
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector loop. Owns the channels registered to it: all reads,
+ * writes and interest changes of those channels happen on this thread.
+ */
+class Reactor implements Runnable {
+    private final Server server;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+
+    Reactor(Server server) throws IOException {
+        this.server   = server;
+        this.selector = Selector.open();
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    boolean inReactorThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            NioClientHandler handler = new NioClientHandler(channel, server, this);
+            try {
+                handler.setKey(channel.register(selector, SelectionKey.OP_READ, handler));
+            } catch (ClosedChannelException e) {
+                handler.close();
+            }
+        });
+    }
+
+    private static void drop(NioClientHandler handler) {
+        try {
+            handler.disconnect();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                NioClientHandler handler = (NioClientHandler) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        handler.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        handler.onReadable();
+                    }
+                } catch (RuntimeException e) {
+                    // only the connection that failed is dropped, not every one of this reactor
+                    e.printStackTrace();
+                    drop(handler);
+                }
+            }
+        }
+    }
+}
@@ -1,15 +1,42 @@
 package server;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
 import java.net.Socket;
 import java.util.*;
-import shared.XMLMessageBuilder;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import shared.EncodedMessage;
+import shared.Message;
 
 
 public class Server {
-    private Set<String> userNames = new HashSet<>();
-    private Map<String, ClientHandler> clients = new HashMap<>();
+    private static final long ACCEPT_RETRY_MS = 100;
+
+    private final SessionRegistry sessions = new SessionRegistry();
+    /** Delayed work of the whole server: presence deltas and joins let in later. */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "server-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final PresenceAggregator presence =
+            new PresenceAggregator(sessions, ServerConfig.PRESENCE_WINDOW_MS, timer);
+    /** Disk work of file transfers, which a reactor thread must not wait for. */
+    private final ExecutorService files = Executors.newFixedThreadPool(ServerConfig.FILE_THREADS, task -> {
+        Thread thread = new Thread(task, "file-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final JoinLimiter joins = new JoinLimiter(ServerConfig.JOIN_RATE, ServerConfig.JOIN_BURST);
+    private final BlobStore blobs;
     private int port;
     private ServerGUI gui;
 
@@ -17,97 +44,201 @@ public class Server {
 
     private Map<String, List<String>> privateHistory = new HashMap<>();
 
+    // guards the histories only
+    private final ReentrantLock lock = new ReentrantLock();
+
     public Server(int port) {
         this.port = port;
         this.gui  = new ServerGUI(this);
+        try {
+            this.blobs = new BlobStore(Paths.get(ServerConfig.BLOB_DIR), ServerConfig.BLOB_QUOTA);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    public synchronized boolean addUser(ClientHandler client) {
-        String name = client.getUserName();
-        for (String existing : userNames) {
-            if (existing.equalsIgnoreCase(name)) {
-                return false;
-            }
+    BlobStore getBlobStore() {
+        return blobs;
+    }
+
+    Executor getFileExecutor() {
+        return files;
+    }
+
+    /**
+     * Claims the client's name and runs {@code accepted}; a client that asked
+     * for the roster has it queued right after whatever that sends.
+     */
+    public boolean addUser(ClientHandler client, Runnable accepted) {
+        if (!presence.claim(client, accepted)) {
+            return false;
         }
-        clients.put(name, client);
-        userNames.add(name);
-        gui.addUser(name);
+        gui.addUser(client.getUserName());
         return true;
     }
 
-    public synchronized void removeUser(ClientHandler client) {
+    /** Takes a join token; returns how many nanoseconds from now the join may go ahead, 0 when right away. */
+    long reserveJoin() {
+        return joins.reserve();
+    }
+
+    void schedule(Runnable task, long delayNanos) {
+        timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A client has claimed its name. One that did not ask for the roster
+     * gets a join message per user instead; the others hear of it with the
+     * next presence delta, or with a join message right away.
+     */
+    void userJoined(ClientHandler client) {
         String name = client.getUserName();
-        if (name != null) {
-            String leaveXml = XMLMessageBuilder.buildLeaveMessage(name);
-            broadcast(leaveXml);
+        logChat("🔵 " + name + " has joined the chat");
+        if (!client.acceptsPresence()) {
+            sessions.forEach(other -> {
+                if (other != client) {
+                    client.sendMessage(Message.join(other.getUserName(), other.getMood()));
+                }
+            });
+        }
+        presence.online(name, client.getMood());
+        sendToOlderClients(Message.join(name, client.getMood()));
+    }
 
-            clients.remove(name);
-            userNames.removeIf(s -> s.equalsIgnoreCase(name));
+    /** Sends a join, leave, mood or rename message to the clients that get no presence deltas. */
+    private void sendToOlderClients(Message message) {
+        EncodedMessage encoded = EncodedMessage.of(message);
+        sessions.forEach(client -> {
+            if (!client.acceptsPresence()) {
+                client.send(encoded);
+            }
+        });
+    }
+
+    void moodChanged(ClientHandler client) {
+        logChat("😎 " + client.getUserName() + " changed mood to " + client.getMood());
+        presence.online(client.getUserName(), client.getMood());
+        sendToOlderClients(Message.mood(client.getUserName(), client.getMood()));
+    }
+
+    /** A client missed a presence delta and asks for the whole roster again. */
+    void sendRoster(ClientHandler client) {
+        presence.sendRoster(client);
+    }
+
+    public void removeUser(ClientHandler client) {
+        String name = client.getUserName();
+        if (name != null && sessions.release(client)) {
+            logChat("🔴 " + name + " has left the chat");
+            presence.offline(name);
+            sendToOlderClients(Message.leave(name));
 
             gui.removeUser(name);
         }
     }
 
-    public synchronized void logChat(String msg) {
-        localHistory.add(msg);
+    public void logChat(String msg) {
+        lock.lock();
+        try {
+            localHistory.add(msg);
+            gui.logMessage(msg);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void logStatus(String msg) {
         gui.logMessage(msg);
     }
 
     public void execute() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
+        if (ServerConfig.DOWNLOAD_PORT > 0) {
+            Thread downloads = new Thread(new BlobServer(blobs, ServerConfig.DOWNLOAD_PORT), "downloads");
+            downloads.setDaemon(true);
+            downloads.start();
+            gui.logMessage("📦 File downloads on port: " + ServerConfig.DOWNLOAD_PORT);
+        }
+
+        if ("nio".equalsIgnoreCase(ServerConfig.TRANSPORT)) {
+            try {
+                new NioTransport(this, port, ServerConfig.REACTORS).run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        ExecutorService executor = "virtual".equalsIgnoreCase(ServerConfig.TRANSPORT)
+                ? newVirtualThreadExecutor()
+                : null;
+
+        try (ServerSocket serverSocket = new ServerSocket(port, ServerConfig.ACCEPT_BACKLOG)) {
             gui.logMessage("🌐 Server started on port: " + port);
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                ClientHandler client = new ClientHandler(clientSocket, this);
-                client.start();
+                Socket clientSocket;
+                try {
+                    clientSocket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        throw e;
+                    }
+                    acceptFailed(e);
+                    continue;
+                }
+                if (executor != null) {
+                    executor.execute(new ClientHandler(clientSocket, this, executor));
+                } else {
+                    new Thread(new ClientHandler(clientSocket, this)).start();
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public synchronized boolean isUserNameTaken(String name) {
-        for (String existing : userNames) {
-            if (existing.equalsIgnoreCase(name)) {
-                return true;
-            }
+    /**
+     * A failed accept, such as running out of file descriptors while
+     * everyone reconnects at once, leaves the listener usable: the error is
+     * logged and accepting goes on after a short pause, as connections close.
+     */
+    static void acceptFailed(IOException e) {
+        System.err.println("Error: " + e.getMessage());
+        try {
+            TimeUnit.MILLISECONDS.sleep(ACCEPT_RETRY_MS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // looked up reflectively so the server still builds and runs on JDKs before 21;
+    // the server's locks are ReentrantLocks, as a virtual thread blocked inside a monitor pins its carrier
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            gui.logMessage("⚠️ Virtual threads need Java 21+, using a platform thread pool");
+            return Executors.newCachedThreadPool();
         }
-        return false;
     }
 
-    public synchronized void broadcast(String message) {
-        String type = XMLMessageBuilder.parseType(message);
+    public boolean isUserNameTaken(String name) {
+        return sessions.isTaken(name);
+    }
 
-        switch (type) {
-            case "join": {
-                String from = XMLMessageBuilder.parseSender(message);
-                String joinMsg = "🔵 " + from + " has joined the chat";
-                logChat(joinMsg);
-                break;
-            }
-            case "leave": {
-                String from = XMLMessageBuilder.parseSender(message);
-                String leaveMsg = "🔴 " + from + " has left the chat";
-                logChat(leaveMsg);
-                break;
-            }
-            case "mood": {
-                String from    = XMLMessageBuilder.parseSender(message);
-                String newMood = XMLMessageBuilder.parseMood(message);
-                String moodMsg = "😎 " + from + " changed mood to " + newMood;
-                logChat(moodMsg);
-                break;
-            }
-            case "emotion": {
-                String from = XMLMessageBuilder.parseSender(message);
-                String body = XMLMessageBuilder.parseBody(message);
+    public void broadcast(Message message) {
+        switch (message.getType()) {
+            case EMOTION: {
+                String from = message.getFrom();
+                String body = message.getBody();
                 String emoMsg = "🎭 " + from + ": " + body;
                 logChat(emoMsg);
                 break;
             }
-            case "broadcast": {
-                String from = XMLMessageBuilder.parseSender(message);
-                String body = XMLMessageBuilder.parseBody(message);
+            case BROADCAST: {
+                String from = message.getFrom();
+                String body = message.getBody();
                 String bcMsg = "💬 " + from + ": " + body;
                 logChat(bcMsg);
                 break;
@@ -116,112 +247,165 @@ public class Server {
                 break;
         }
 
-        for (ClientHandler client : clients.values()) {
-            client.sendMessage(message);
-        }
+        EncodedMessage encoded = EncodedMessage.of(message);
+        sessions.forEach(client -> client.send(encoded));
     }
 
-    public synchronized void sendPrivateMessage(String toUser, String message) {
-        String actualRecipient = null;
-        for (String existing : clients.keySet()) {
-            if (existing.equalsIgnoreCase(toUser)) {
-                actualRecipient = existing;
-                break;
-            }
-        }
-        if (actualRecipient == null) {
+    public void sendPrivateMessage(String toUser, Message message) {
+        ClientHandler client = sessions.find(toUser);
+        if (client == null) {
             return;
         }
 
-        String fromUser = XMLMessageBuilder.parseSender(message);
-        String body     = XMLMessageBuilder.parseBody(message);
+        String fromUser = message.getFrom();
+        String body     = message.getBody();
         if (fromUser != null && body != null) {
             String userA = fromUser;
-            String userB = actualRecipient;
+            String userB = client.getUserName();
             String key = (userA.compareToIgnoreCase(userB) < 0)
                     ? userA + ":" + userB
                     : userB + ":" + userA;
 
-            if (!privateHistory.containsKey(key)) {
-                gui.addConversation(userA, userB);
-                privateHistory.put(key, new ArrayList<>());
+            lock.lock();
+            try {
+                if (!privateHistory.containsKey(key)) {
+                    gui.addConversation(userA, userB);
+                    privateHistory.put(key, new ArrayList<>());
+                }
+                privateHistory.get(key).add(fromUser + ": " + body);
+            } finally {
+                lock.unlock();
             }
-            privateHistory.get(key).add(fromUser + ": " + body);
         }
 
-        ClientHandler client = clients.get(actualRecipient);
-        if (client != null) {
-            client.sendMessage(message);
-        }
+        client.sendMessage(message);
     }
 
-    public synchronized boolean renameUser(String oldName, String newName) {
-        for (String existing : userNames) {
-            if (existing.equalsIgnoreCase(newName) && !existing.equalsIgnoreCase(oldName)) {
-                return false;
+    /**
+     * Relays one message of a private chunked file transfer, or the
+     * recipient's answer to it, without echoing it back. A chunk is acknowledged to the sender once the recipient's
+     * connection has written it, so the sender's window keeps it at most a
+     * few chunks ahead of the recipient instead of filling its outbox.
+     */
+    public void relayTransfer(ClientHandler sender, Message message) {
+        ClientHandler recipient = sessions.find(message.getTo());
+        if (recipient == sender) {
+            recipient = null;
+        }
+        if (message.getType() == Message.Type.FILE_CHUNK) {
+            Message ack = Message.fileAck(message.get(Message.Field.TRANSFER), message.get(Message.Field.SEQ));
+            EncodedMessage encoded = EncodedMessage.of(message, recipient != null ? 1 : 0, () -> sender.sendMessage(ack));
+            if (recipient != null) {
+                recipient.send(encoded);
             }
+        } else if (recipient != null) {
+            recipient.sendMessage(message);
+        } else if (message.getType() == Message.Type.FILE_START) {
+            sender.sendMessage(Message.fileResume("", sender.getUserName(), message.get(Message.Field.TRANSFER), -1));
         }
-        String actualKey = null;
-        for (String existing : userNames) {
-            if (existing.equalsIgnoreCase(oldName)) {
-                actualKey = existing;
-                break;
+    }
+
+    /** Tells everyone but the sender about a file stored in the blob store; they fetch it if they want it. */
+    public void shareFile(ClientHandler sender, Message ref) {
+        logChat("📁 " + ref.getFrom() + " sent file: " + ref.getFileName());
+        EncodedMessage encoded = EncodedMessage.of(ref);
+        sessions.forEach(client -> {
+            if (client != sender) {
+                client.send(encoded);
             }
+        });
+    }
+
+    /** Answers a file-fetch with the stored blob, or an error when it is not stored. */
+    public void sendBlob(ClientHandler client, Message request) {
+        String hash = request.get(Message.Field.CHECKSUM);
+        try {
+            FileChannel blob = blobs.open(hash);
+            if (blob == null) {
+                client.sendMessage(Message.error("file is no longer available: " + request.getFileName()));
+                return;
+            }
+            String transfer = request.get(Message.Field.TRANSFER);
+            BlobDownload download = new BlobDownload(client, blob, transfer, hash);
+            client.addDownload(transfer, download);
+            download.start(request.getFileName());
+        } catch (IOException e) {
+            client.sendMessage(Message.error("file is no longer available: " + request.getFileName()));
         }
-        if (actualKey == null) {
+    }
+
+    public boolean renameUser(ClientHandler client, String newName) {
+        String oldName = client.getUserName();
+        if (!sessions.rename(client, newName)) {
             return false;
         }
 
-        ClientHandler handler = clients.remove(actualKey);
-        userNames.remove(actualKey);
-
-        clients.put(newName, handler);
-        userNames.add(newName);
-
-        Map<String, List<String>> updatedPrivate = new HashMap<>();
-        for (Map.Entry<String, List<String>> entry : privateHistory.entrySet()) {
-            String key = entry.getKey(); 
-            String[] parts = key.split(":");
-            String a = parts[0], b = parts[1];
-            boolean replaced = false;
-            if (a.equalsIgnoreCase(oldName)) {
-                a = newName;
-                replaced = true;
-            }
-            if (b.equalsIgnoreCase(oldName)) {
-                b = newName;
-                replaced = true;
-            }
-            if (replaced) {
-                String newKey = (a.compareToIgnoreCase(b) < 0) ? a + ":" + b : b + ":" + a;
-                updatedPrivate.put(newKey, entry.getValue());
-            } else {
-                updatedPrivate.put(key, entry.getValue());
+        lock.lock();
+        try {
+            Map<String, List<String>> updatedPrivate = new HashMap<>();
+            for (Map.Entry<String, List<String>> entry : privateHistory.entrySet()) {
+                String key = entry.getKey(); 
+                String[] parts = key.split(":");
+                String a = parts[0], b = parts[1];
+                boolean replaced = false;
+                if (a.equalsIgnoreCase(oldName)) {
+                    a = newName;
+                    replaced = true;
+                }
+                if (b.equalsIgnoreCase(oldName)) {
+                    b = newName;
+                    replaced = true;
+                }
+                if (replaced) {
+                    String newKey = (a.compareToIgnoreCase(b) < 0) ? a + ":" + b : b + ":" + a;
+                    updatedPrivate.put(newKey, entry.getValue());
+                } else {
+                    updatedPrivate.put(key, entry.getValue());
+                }
             }
-        }
-        privateHistory = updatedPrivate;
+            privateHistory = updatedPrivate;
 
-        gui.renameUser(oldName, newName);
+            gui.renameUser(oldName, newName);
+        } finally {
+            lock.unlock();
+        }
+        presence.renamed(oldName, newName, client.getMood());
+        sendToOlderClients(Message.rename(oldName, newName));
         return true;
     }
 
-    public synchronized List<String> getLocalHistory() {
-        return new ArrayList<>(localHistory);
+    public List<String> getLocalHistory() {
+        lock.lock();
+        try {
+            return new ArrayList<>(localHistory);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<String> getPrivateHistory(String userA, String userB) {
+        lock.lock();
+        try {
+            String key = (userA.compareToIgnoreCase(userB) < 0)
+                    ? userA + ":" + userB
+                    : userB + ":" + userA;
+            return new ArrayList<>(privateHistory.getOrDefault(key, Collections.emptyList()));
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized List<String> getPrivateHistory(String userA, String userB) {
-        String key = (userA.compareToIgnoreCase(userB) < 0)
-                ? userA + ":" + userB
-                : userB + ":" + userA;
-        return new ArrayList<>(privateHistory.getOrDefault(key, Collections.emptyList()));
+    public ConnectionMetrics getMetrics(String userName) {
+        ClientHandler client = sessions.find(userName);
+        return client != null ? client.getMetrics() : null;
     }
 
-    public synchronized Collection<ClientHandler> getClientHandlers() {
-        return new ArrayList<>(clients.values());
+    public Collection<ClientHandler> getClientHandlers() {
+        return sessions.snapshot();
     }
 
     public static void main(String[] args) {
-        int port = 12345;
+        int port = ServerConfig.PORT;
         Server server = new Server(port);
         server.execute();
     }
@@ -0,0 +1,60 @@
+package server;
+
+/**
+ * Startup settings of the server, read from system properties,
+ * e.g. {@code java -Dpathtoyou.transport=nio server.Server}.
+ */
+public final class ServerConfig {
+    public static final int PORT = Integer.getInteger("pathtoyou.port", 12345);
+
+    /**
+     * "threads" - one blocking thread per client, "virtual" - virtual threads (Java 21+),
+     * "nio" - selector based reactors.
+     */
+    public static final String TRANSPORT = System.getProperty("pathtoyou.transport", "threads");
+
+    public static final int REACTORS = Integer.getInteger("pathtoyou.reactors",
+            Runtime.getRuntime().availableProcessors());
+
+    /** Messages a client may have queued before it is dropped as too slow. */
+    public static final int OUTBOX_CAPACITY = Integer.getInteger("pathtoyou.outbox", 1024);
+
+    /** Largest message a client may send, in bytes; bigger ones are skipped and answered with an error. */
+    public static final int MAX_MESSAGE_SIZE = Integer.getInteger("pathtoyou.maxMessage", 64 << 20);
+
+    /** Bytes of one incoming message a connection may hold on the heap; bigger ones go through a temp file. */
+    public static final int MEMORY_BUDGET = Integer.getInteger("pathtoyou.memoryBudget", 1 << 20);
+
+    /** Directory of the files shared to "Local Chat", stored once per content. */
+    public static final String BLOB_DIR = System.getProperty("pathtoyou.blobDir", "blobs");
+
+    /** Bytes the shared files may take; the least recently used ones are deleted beyond it. */
+    public static final long BLOB_QUOTA = Long.getLong("pathtoyou.blobQuota", 1L << 30);
+
+    /** Port of the bulk download listener for stored files, 0 to fetch them over the chat connection only. */
+    public static final int DOWNLOAD_PORT = Integer.getInteger("pathtoyou.downloadPort", PORT + 1);
+
+    /** Downloads the download port serves at once; more are answered 503. */
+    public static final int DOWNLOAD_CONNECTIONS = Integer.getInteger("pathtoyou.downloadConnections", 64);
+
+    /** Threads that read and write shared files for the nio transport, so its reactors never wait for the disk. */
+    public static final int FILE_THREADS = Integer.getInteger("pathtoyou.fileThreads", 4);
+
+    /** Whether clients that ask for it at join are switched to binary frames. */
+    public static final boolean FRAMES = Boolean.parseBoolean(System.getProperty("pathtoyou.frames", "true"));
+
+    /** Milliseconds presence changes are collected for before they go out as one delta, 0 to send each at once. */
+    public static final int PRESENCE_WINDOW_MS = Integer.getInteger("pathtoyou.presenceWindow", 150);
+
+    /** Connections the OS keeps waiting to be accepted; a reconnect storm beyond it is refused by the OS, not the server. */
+    public static final int ACCEPT_BACKLOG = Integer.getInteger("pathtoyou.backlog", 1024);
+
+    /** Joins let in per second once a burst is used up; the rest are told to wait for their turn. 0 - no limit. */
+    public static final int JOIN_RATE = Integer.getInteger("pathtoyou.joinRate", 200);
+
+    /** Joins let in at once before the rate applies. */
+    public static final int JOIN_BURST = Integer.getInteger("pathtoyou.joinBurst", 100);
+
+    private ServerConfig() {
+    }
+}
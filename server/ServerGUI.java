@@ -4,6 +4,7 @@ import javax.swing.*;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import java.awt.*;
+import java.awt.event.MouseEvent;
 import java.util.List;
 import shared.XMLMessageBuilder;
 
@@ -88,7 +89,18 @@ public class ServerGUI {
 
         JPanel usersPanel = new JPanel(new BorderLayout());
         userListModel = new DefaultListModel<>();
-        userList = new JList<>(userListModel);
+        userList = new JList<>(userListModel) {
+            @Override
+            public String getToolTipText(MouseEvent e) {
+                int idx = locationToIndex(e.getPoint());
+                if (idx < 0) {
+                    return null;
+                }
+                ConnectionMetrics metrics = server.getMetrics(userListModel.get(idx));
+                return metrics != null ? metrics.toString() : null;
+            }
+        };
+        ToolTipManager.sharedInstance().registerComponent(userList);
         userList.setFont(new Font("Segoe UI", Font.PLAIN, 13));
         JScrollPane userScroll = new JScrollPane(userList);
         usersPanel.add(userScroll, BorderLayout.CENTER);
@@ -0,0 +1,82 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Connected clients keyed by their case-folded name. Claiming, renaming and
+ * releasing a name are single map operations, so joins and lookups from many
+ * handler threads never wait on a shared monitor.
+ */
+class SessionRegistry {
+    private final ConcurrentHashMap<String, ClientHandler> sessions = new ConcurrentHashMap<>();
+
+    static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /** Binds the client's current name to it; false if the name is already in use. */
+    boolean claim(ClientHandler client) {
+        return sessions.putIfAbsent(client.getUserKey(), client) == null;
+    }
+
+    /** Removes the client's name, but only while the name still belongs to this client. */
+    boolean release(ClientHandler client) {
+        String key = client.getUserKey();
+        return key != null && sessions.remove(key, client);
+    }
+
+    boolean isTaken(String name) {
+        return sessions.containsKey(key(name));
+    }
+
+    ClientHandler find(String name) {
+        return sessions.get(key(name));
+    }
+
+    /**
+     * Moves the client to {@code newName}. The new name is claimed before the
+     * old one is released, so no other client can grab either in between.
+     */
+    boolean rename(ClientHandler client, String newName) {
+        String oldKey = client.getUserKey();
+        String newKey = key(newName);
+        if (sessions.get(oldKey) != client) {
+            return false;
+        }
+        if (oldKey.equals(newKey)) {
+            client.setUserName(newName);
+            return true;
+        }
+        if (sessions.putIfAbsent(newKey, client) != null) {
+            return false;
+        }
+        client.setUserName(newName);
+        sessions.remove(oldKey, client);
+        return true;
+    }
+
+    /**
+     * Visits every client once. While a rename is in flight a client is
+     * briefly stored under both names; only the entry matching its current
+     * name is visited.
+     */
+    void forEach(Consumer<ClientHandler> action) {
+        for (Map.Entry<String, ClientHandler> entry : sessions.entrySet()) {
+            ClientHandler client = entry.getValue();
+            if (entry.getKey().equals(client.getUserKey())) {
+                action.accept(client);
+            }
+        }
+    }
+
+    List<ClientHandler> snapshot() {
+        List<ClientHandler> list = new ArrayList<>(sessions.size());
+        forEach(list::add);
+        return list;
+    }
+}
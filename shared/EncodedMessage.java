@@ -0,0 +1,105 @@
+package shared;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message already encoded for the wire. Immutable, so one instance can be
+ * handed to every recipient of a broadcast instead of encoding the same
+ * string once per socket. Each {@link WireFormat} is encoded at most once,
+ * the first time a recipient speaking it needs it; a received message is
+ * not encoded at all for recipients of the format it arrived in.
+ */
+public final class EncodedMessage {
+    private final Message message;
+    private volatile ByteBuffer line;
+    private volatile ByteBuffer frame;
+
+    private final AtomicInteger unwritten;
+    private final Runnable onWritten;
+
+    private EncodedMessage(Message message, int recipients, Runnable onWritten) {
+        this.message   = message;
+        this.unwritten = onWritten != null ? new AtomicInteger(recipients) : null;
+        this.onWritten = onWritten;
+    }
+
+    public static EncodedMessage of(Message message) {
+        return new EncodedMessage(message, 0, null);
+    }
+
+    /**
+     * A message queued to {@code recipients} connections; {@code onWritten}
+     * runs once each of them has called {@link #written()}, right away when
+     * there are none.
+     */
+    public static EncodedMessage of(Message message, int recipients, Runnable onWritten) {
+        EncodedMessage encoded = new EncodedMessage(message, recipients, onWritten);
+        if (recipients == 0) {
+            onWritten.run();
+        }
+        return encoded;
+    }
+
+    public static EncodedMessage of(String xml) {
+        return new EncodedMessage(MessageCodec.parse(xml), 0, null);
+    }
+
+    public Message message() {
+        return message;
+    }
+
+    public String xml() {
+        return message.toXml();
+    }
+
+    public int size(WireFormat format) {
+        return bytes(format).limit();
+    }
+
+    /** A fresh read-only view of the encoded bytes; the content is shared, not copied. */
+    public ByteBuffer buffer(WireFormat format) {
+        return bytes(format).asReadOnlyBuffer();
+    }
+
+    public void writeTo(OutputStream out, WireFormat format) throws IOException {
+        ByteBuffer bytes = bytes(format);
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset(), bytes.limit());
+            return;
+        }
+        // a spilled message, mapped from its temp file
+        byte[] chunk = new byte[8192];
+        for (int pos = 0; pos < bytes.limit(); pos += chunk.length) {
+            int n = Math.min(chunk.length, bytes.limit() - pos);
+            bytes.get(pos, chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+
+    /** Called by a connection once it has written this message, or dropped it unwritten. */
+    public void written() {
+        if (unwritten != null && unwritten.decrementAndGet() == 0) {
+            onWritten.run();
+        }
+    }
+
+    // racing threads may both encode; either result is identical. The cached
+    // buffers are only read with absolute gets or through views.
+    private ByteBuffer bytes(WireFormat format) {
+        if (format == WireFormat.FRAME) {
+            ByteBuffer b = frame;
+            if (b == null) {
+                frame = b = FrameCodec.encode(message);
+            }
+            return b;
+        }
+        ByteBuffer b = line;
+        if (b == null) {
+            line = b = MessageCodec.encodeLine(message);
+        }
+        return b;
+    }
+}
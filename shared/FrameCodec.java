@@ -0,0 +1,191 @@
+package shared;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary framing negotiated at join time (see {@link WireFormat#FRAME}).
+ *
+ * <pre>
+ * frame  = type:u8 flags:u8 length:i32 payload[length]
+ * payload = ( field-id:u8 value-length:varint value:utf8 )*
+ * </pre>
+ *
+ * Message types and fields are sent as their {@link Message.Type} and
+ * {@link Message.Field} codes; a type without a code is sent as
+ * {@link #OTHER} with its name in field 0.
+ */
+public final class FrameCodec {
+    public static final int HEADER_SIZE = 6;
+
+    static final int OTHER = 0;
+
+    /** Field id 0 carries the type name of {@link #OTHER} frames. */
+    private static final int TYPE_NAME = 0;
+
+    private static final Message.Field[] FIELDS = Message.Field.values();
+
+    private FrameCodec() {
+    }
+
+    public static byte[] encode(String xml) {
+        return encode(MessageCodec.parse(xml)).array();
+    }
+
+    /**
+     * Encodes one message as a complete frame, header included. A message
+     * received as a frame is returned as received; the fields of one
+     * received as a line are copied from the line's bytes when they contain
+     * no entity to unescape.
+     */
+    public static ByteBuffer encode(Message message) {
+        ByteBuffer received = message.raw(WireFormat.FRAME);
+        if (received != null) {
+            return received;
+        }
+        ByteBuffer line = message.raw(WireFormat.LINE);
+        int code = message.getType().code;
+
+        byte[] typeName = code == OTHER ? message.getTypeName().getBytes(StandardCharsets.UTF_8) : null;
+        byte[][] values = new byte[FIELDS.length][];
+        int length = typeName != null ? 1 + varintSize(typeName.length) + typeName.length : 0;
+        for (Message.Field field : FIELDS) {
+            int size;
+            int start = line != null ? message.rangeStart(field) : -1;
+            if (start >= 0 && !contains(line, (byte) '&', start, message.rangeEnd(field))) {
+                size = message.rangeEnd(field) - start;
+            } else if (message.has(field)) {
+                values[field.ordinal()] = message.get(field).getBytes(StandardCharsets.UTF_8);
+                size = values[field.ordinal()].length;
+            } else {
+                continue;
+            }
+            length += 1 + varintSize(size) + size;
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + length);
+        frame.put((byte) code).put((byte) 0).putInt(length);
+        if (typeName != null) {
+            putField(frame, TYPE_NAME, typeName, 0, typeName.length);
+        }
+        for (Message.Field field : FIELDS) {
+            byte[] value = values[field.ordinal()];
+            if (value != null) {
+                putField(frame, field.code, value, 0, value.length);
+            } else if (line != null && message.rangeStart(field) >= 0) {
+                int start = message.rangeStart(field);
+                putField(frame, field.code, line.duplicate().limit(message.rangeEnd(field)).position(start));
+            }
+        }
+        return frame.flip();
+    }
+
+    /** Payload length from a frame header starting at {@code offset}. */
+    public static int payloadLength(byte[] header, int offset) throws IOException {
+        int length = ((header[offset + 2] & 0xff) << 24)
+                   | ((header[offset + 3] & 0xff) << 16)
+                   | ((header[offset + 4] & 0xff) << 8)
+                   |  (header[offset + 5] & 0xff);
+        if (length < 0) {
+            throw new IOException("Malformed frame: negative length");
+        }
+        return length;
+    }
+
+    /**
+     * Reads a complete frame, header included, which becomes the message's
+     * raw bytes. Only the type is decoded here, fields are located.
+     */
+    public static Message decode(ByteBuffer frame) throws IOException {
+        int type = frame.get(0) & 0xff;
+        Message.Type messageType = type == OTHER ? Message.Type.UNKNOWN : Message.Type.byCode(type);
+        if (messageType == null) {
+            throw new IOException("Malformed frame: unknown type " + type);
+        }
+
+        String typeName = messageType.wireName;
+        int[] ranges = new int[FIELDS.length * 2];
+        Arrays.fill(ranges, -1);
+        int pos = HEADER_SIZE;
+        int end = frame.limit();
+        while (pos < end) {
+            int id = frame.get(pos++) & 0xff;
+            int size = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (pos >= end || shift > 28) {
+                    throw new IOException("Malformed frame: bad field length");
+                }
+                b = frame.get(pos++) & 0xff;
+                size |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (size < 0 || size > end - pos) {
+                throw new IOException("Malformed frame: field exceeds frame");
+            }
+            if (id == TYPE_NAME) {
+                if (type == OTHER) {
+                    typeName = Message.decode(frame, pos, pos + size);
+                }
+            } else {
+                Message.Field field = Message.Field.byCode(id);
+                if (field != null && ranges[field.ordinal() * 2] < 0) {
+                    ranges[field.ordinal() * 2]     = pos;
+                    ranges[field.ordinal() * 2 + 1] = pos + size;
+                }
+            }
+            pos += size;
+        }
+
+        if (type == OTHER) {
+            messageType = Message.Type.byName(typeName);
+        }
+        Message message = new Message(messageType, typeName, frame, WireFormat.FRAME);
+        for (Message.Field field : FIELDS) {
+            if (ranges[field.ordinal() * 2] >= 0) {
+                message.setRange(field, ranges[field.ordinal() * 2], ranges[field.ordinal() * 2 + 1]);
+            }
+        }
+        return message;
+    }
+
+    private static boolean contains(ByteBuffer bytes, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes.get(i) == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void putField(ByteBuffer frame, int id, byte[] value, int offset, int length) {
+        frame.put((byte) id);
+        putVarint(frame, length);
+        frame.put(value, offset, length);
+    }
+
+    private static void putField(ByteBuffer frame, int id, ByteBuffer value) {
+        frame.put((byte) id);
+        putVarint(frame, value.remaining());
+        frame.put(value);
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
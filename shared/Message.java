@@ -0,0 +1,626 @@
+package shared;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One chat protocol message. {@link MessageCodec} reads and writes it as an
+ * XML line, {@link FrameCodec} as a binary frame; both fill every field in a
+ * single pass over the input.
+ *
+ * A message read from a socket keeps the bytes it arrived in and only notes
+ * where each field is; a field is decoded the first time it is read. A relay
+ * that looks at the routing header (type, from, to) therefore never decodes
+ * the payload, and recipients speaking the same format get the received
+ * bytes as they are. Those bytes may be on the heap or, for a message larger
+ * than the reader's memory budget, in a memory-mapped temp file.
+ */
+public final class Message {
+
+    public enum Type {
+        JOIN("join", 1),
+        LEAVE("leave", 2),
+        BROADCAST("broadcast", 3),
+        PRIVATE("private", 4),
+        HUG("hug", 5),
+        RENAME("rename", 6),
+        MOOD("mood", 7),
+        FILE("file", 8),
+        EMOTION("emotion", 9),
+        ERROR("error", 10),
+        FRAMES("frames", 11),
+        EXIT("exit", 12),
+        FILE_START("file-start", 13),
+        FILE_CHUNK("file-chunk", 14),
+        FILE_END("file-end", 15),
+        FILE_ACK("file-ack", 16),
+        FILE_REF("file-ref", 17),
+        FILE_FETCH("file-fetch", 18),
+        FILE_RESUME("file-resume", 19),
+        FILE_NACK("file-nack", 20),
+        ROSTER("roster", 21),
+        PRESENCE("presence", 22),
+        WAIT("wait", 23),
+        /** Any type this version does not know; the name is kept as received. */
+        UNKNOWN("", 0);
+
+        private static final Type[] BY_CODE = new Type[256];
+
+        static {
+            for (Type type : values()) {
+                if (type.code != 0) {
+                    BY_CODE[type.code] = type;
+                }
+            }
+        }
+
+        final String wireName;
+        final int code;
+        /** The root tag as written, "&lt;message type="join"&gt;". */
+        final String head;
+
+        Type(String wireName, int code) {
+            this.wireName = wireName;
+            this.code     = code;
+            this.head     = "<message type=\"" + wireName + "\">";
+        }
+
+        public String wireName() {
+            return wireName;
+        }
+
+        static Type byName(String name) {
+            for (Type type : values()) {
+                if (type.code != 0 && type.wireName.equals(name)) {
+                    return type;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        static Type byCode(int code) {
+            return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        }
+    }
+
+    public enum Field {
+        FROM("from", 1),
+        TO("to", 2),
+        BODY("body", 3),
+        MOOD("mood", 4),
+        FILENAME("filename", 5),
+        FILEDATA("filedata", 6),
+        FRAMES("frames", 7),
+        TRANSFER("transfer", 8),
+        SEQ("seq", 9),
+        SIZE("size", 10),
+        CHECKSUM("checksum", 11),
+        PORT("port", 12),
+        CRC("crc", 13),
+        OFFSET("offset", 14),
+        ACCEPTS("accepts", 15);
+
+        private static final Field[] BY_CODE = new Field[256];
+
+        static {
+            for (Field field : values()) {
+                BY_CODE[field.code] = field;
+            }
+        }
+
+        final String tag;
+        final int code;
+        final String open;
+        final String close;
+
+        Field(String tag, int code) {
+            this.tag   = tag;
+            this.code  = code;
+            this.open  = "<" + tag + ">";
+            this.close = "</" + tag + ">";
+        }
+
+        static Field byTag(String xml, int start, int end) {
+            int length = end - start;
+            for (Field field : values()) {
+                if (field.tag.length() == length && xml.regionMatches(start, field.tag, 0, length)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+
+        static Field byTag(ByteBuffer line, int start, int end) {
+            int length = end - start;
+            for (Field field : values()) {
+                if (field.tag.length() == length && matches(field.tag, line, start)) {
+                    return field;
+                }
+            }
+            return null;
+        }
+
+        private static boolean matches(String tag, ByteBuffer line, int start) {
+            for (int i = 0; i < tag.length(); i++) {
+                if (line.get(start + i) != tag.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static Field byCode(int code) {
+            return BY_CODE[code & 0xff];
+        }
+    }
+
+    private static final Field[] FIELDS = Field.values();
+
+    private final Type type;
+    private final String typeName;
+    private final String[] values = new String[FIELDS.length];
+    private String xml;
+
+    private ByteBuffer raw;
+    private WireFormat rawFormat;
+    /** Start and end of each field in {@link #raw}, -1 when absent. */
+    private int[] ranges;
+
+    public Message(Type type) {
+        this(type, type.wireName);
+    }
+
+    Message(Type type, String typeName) {
+        this.type     = type;
+        this.typeName = typeName;
+    }
+
+    /** A message backed by the complete bytes it was received as (line with its newline, or whole frame). */
+    Message(Type type, String typeName, ByteBuffer raw, WireFormat rawFormat) {
+        this(type, typeName);
+        this.raw       = raw;
+        this.rawFormat = rawFormat;
+        this.ranges    = new int[FIELDS.length * 2];
+        Arrays.fill(ranges, -1);
+    }
+
+    public static Message join(String sender, String mood) {
+        return new Message(Type.JOIN).set(Field.FROM, sender).set(Field.MOOD, mood);
+    }
+
+    /** Join that also asks the server to switch this connection to binary frames. */
+    public static Message joinWithFrames(String sender, String mood) {
+        return join(sender, mood).set(Field.FRAMES, "1");
+    }
+
+    /**
+     * Answer to a join the server lets in later, in about {@code millis}, so
+     * that a crowd reconnecting at once gets in at a steady rate. The join is
+     * answered as usual then; the client sends nothing in between.
+     */
+    public static Message joinWait(long millis) {
+        return new Message(Type.WAIT).set(Field.BODY, Long.toString(millis));
+    }
+
+    /** Last line the server sends before switching the connection to binary frames. */
+    public static Message framesAccepted() {
+        return new Message(Type.FRAMES).set(Field.BODY, "1");
+    }
+
+    /**
+     * Everyone online, with their moods, as of presence {@code version}: sent
+     * to a client that has just joined, one message instead of a join per
+     * user, and to one that asks for it again. Each name and mood is written
+     * as its length in chars, a colon and the text, so neither needs escaping.
+     */
+    public static Message roster(long version, Map<String, String> moods) {
+        StringBuilder body = new StringBuilder(moods.size() * 16);
+        for (Map.Entry<String, String> user : moods.entrySet()) {
+            appendText(body, user.getKey());
+            appendText(body, user.getValue());
+        }
+        return new Message(Type.ROSTER).set(Field.SEQ, Long.toString(version)).set(Field.BODY, body.toString());
+    }
+
+    /** Asks the server for the whole roster again, after a client missed a presence delta. */
+    public static Message rosterRequest() {
+        return new Message(Type.ROSTER);
+    }
+
+    /**
+     * The presence changes of one window, taking the roster from
+     * {@code version - 1} to {@code version}. Each change is its kind
+     * character followed by two texts written as in {@link #roster}.
+     */
+    public static Message presence(long version, List<PresenceChange> changes) {
+        StringBuilder body = new StringBuilder(changes.size() * 20);
+        for (PresenceChange change : changes) {
+            body.append(change.code());
+            appendText(body, change.getName());
+            appendText(body, change.value());
+        }
+        return new Message(Type.PRESENCE).set(Field.SEQ, Long.toString(version)).set(Field.BODY, body.toString());
+    }
+
+    public static Message leave(String sender) {
+        return new Message(Type.LEAVE).set(Field.FROM, sender);
+    }
+
+    public static Message broadcast(String sender, String body) {
+        return new Message(Type.BROADCAST).set(Field.FROM, sender).set(Field.BODY, body);
+    }
+
+    public static Message privateMessage(String sender, String receiver, String body) {
+        return new Message(Type.PRIVATE).set(Field.FROM, sender).set(Field.TO, receiver).set(Field.BODY, body);
+    }
+
+    public static Message hug(String sender, String receiver) {
+        String body = sender + " надіслав обійми 🤗 до " + receiver;
+        return new Message(Type.HUG).set(Field.FROM, sender).set(Field.TO, receiver).set(Field.BODY, body);
+    }
+
+    public static Message rename(String oldName, String newName) {
+        return new Message(Type.RENAME).set(Field.FROM, oldName).set(Field.BODY, oldName + "=>" + newName);
+    }
+
+    public static Message mood(String sender, String mood) {
+        return new Message(Type.MOOD).set(Field.FROM, sender).set(Field.MOOD, mood);
+    }
+
+    public static Message file(String sender, String receiver, String fileName, String fileData) {
+        return new Message(Type.FILE).set(Field.FROM, sender).set(Field.TO, receiver)
+                .set(Field.FILENAME, fileName).set(Field.FILEDATA, fileData);
+    }
+
+    /**
+     * Opens a chunked transfer of {@code size} bytes whose content has the hex
+     * SHA-256 {@code hash}. The receiver answers with {@link #fileResume}.
+     */
+    public static Message fileStart(String sender, String receiver, String transfer, String fileName, long size, String hash) {
+        return new Message(Type.FILE_START).set(Field.FROM, sender).set(Field.TO, receiver)
+                .set(Field.TRANSFER, transfer).set(Field.FILENAME, fileName).set(Field.SIZE, Long.toString(size))
+                .set(Field.CHECKSUM, hash);
+    }
+
+    /** Chunk {@code seq} of {@link PartialFile#CHUNK_SIZE} bytes, base64-encoded, with the CRC32C of the raw bytes. */
+    public static Message fileChunk(String receiver, String transfer, long seq, long crc, String data) {
+        return new Message(Type.FILE_CHUNK).set(Field.TO, receiver).set(Field.TRANSFER, transfer)
+                .set(Field.SEQ, Long.toString(seq)).set(Field.CRC, Long.toString(crc)).set(Field.FILEDATA, data);
+    }
+
+    /** Ends a round of chunks; the receiver answers with {@link #fileResume}. */
+    public static Message fileEnd(String sender, String receiver, String transfer, long chunks, String checksum) {
+        return new Message(Type.FILE_END).set(Field.FROM, sender).set(Field.TO, receiver)
+                .set(Field.TRANSFER, transfer).set(Field.SEQ, Long.toString(chunks)).set(Field.CHECKSUM, checksum);
+    }
+
+    /**
+     * The receiver's answer to file-start and file-end: the byte the sender
+     * has to continue from. The file size means the receiver has all of it
+     * and it checked out, -1 that the receiver refuses the transfer.
+     */
+    public static Message fileResume(String sender, String receiver, String transfer, long offset) {
+        return new Message(Type.FILE_RESUME).set(Field.FROM, sender).set(Field.TO, receiver)
+                .set(Field.TRANSFER, transfer).set(Field.OFFSET, Long.toString(offset));
+    }
+
+    /** Chunk {@code seq} arrived corrupted and has to be sent again. */
+    public static Message fileNack(String sender, String receiver, String transfer, long seq) {
+        return new Message(Type.FILE_NACK).set(Field.FROM, sender).set(Field.TO, receiver)
+                .set(Field.TRANSFER, transfer).set(Field.SEQ, Long.toString(seq));
+    }
+
+    /** A file-end without a checksum: the sender gave up; the receiver keeps what it has for a later resume. */
+    public static Message fileCancel(String sender, String receiver, String transfer) {
+        return new Message(Type.FILE_END).set(Field.FROM, sender).set(Field.TO, receiver).set(Field.TRANSFER, transfer);
+    }
+
+    /** Sent by the server once every recipient's connection has written chunk {@code seq}. */
+    public static Message fileAck(String transfer, String seq) {
+        return new Message(Type.FILE_ACK).set(Field.TRANSFER, transfer).set(Field.SEQ, seq);
+    }
+
+    /**
+     * A file shared to "Local Chat" and stored on the server; the content is
+     * fetched by its hash, from {@code downloadPort} when it is not 0.
+     */
+    public static Message fileRef(String sender, String fileName, long size, String hash, int downloadPort) {
+        Message message = new Message(Type.FILE_REF).set(Field.FROM, sender).set(Field.TO, "Local Chat")
+                .set(Field.FILENAME, fileName).set(Field.SIZE, Long.toString(size)).set(Field.CHECKSUM, hash);
+        return downloadPort > 0 ? message.set(Field.PORT, Integer.toString(downloadPort)) : message;
+    }
+
+    /** Asks the server to send a shared file back as a chunked transfer with id {@code transfer}. */
+    public static Message fileFetch(String sender, String transfer, String fileName, String hash) {
+        return new Message(Type.FILE_FETCH).set(Field.FROM, sender).set(Field.TRANSFER, transfer)
+                .set(Field.FILENAME, fileName).set(Field.CHECKSUM, hash);
+    }
+
+    public static Message emotion(String sender, String receiver, String emoji) {
+        return new Message(Type.EMOTION).set(Field.FROM, sender).set(Field.TO, receiver).set(Field.BODY, emoji);
+    }
+
+    public static Message error(String body) {
+        return new Message(Type.ERROR).set(Field.BODY, body);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /** The type as it appears on the wire, also for {@link Type#UNKNOWN}. */
+    public String getTypeName() {
+        return typeName;
+    }
+
+    /** A null value is stored as empty, so the tag is still written. */
+    public Message set(Field field, String value) {
+        if (raw != null) {
+            for (Field other : FIELDS) {
+                get(other);
+            }
+            raw    = null;
+            ranges = null;
+        }
+        values[field.ordinal()] = value != null ? value : "";
+        xml = null;
+        return this;
+    }
+
+    public boolean has(Field field) {
+        return values[field.ordinal()] != null || (raw != null && ranges[field.ordinal() * 2] >= 0);
+    }
+
+    /** The field's value, or "" when the message does not carry it. */
+    public String get(Field field) {
+        int i = field.ordinal();
+        String value = values[i];
+        if (value == null && raw != null && ranges[i * 2] >= 0) {
+            // racing readers decode the same immutable value
+            value = decode(raw, ranges[i * 2], ranges[i * 2 + 1]);
+            if (rawFormat == WireFormat.LINE) {
+                value = MessageCodec.unescape(value);
+            }
+            values[i] = value;
+        }
+        return value != null ? value : "";
+    }
+
+    public String getFrom() {
+        return get(Field.FROM);
+    }
+
+    public String getTo() {
+        return get(Field.TO);
+    }
+
+    public String getBody() {
+        return get(Field.BODY);
+    }
+
+    public String getMood() {
+        return get(Field.MOOD);
+    }
+
+    public String getFileName() {
+        return get(Field.FILENAME);
+    }
+
+    public String getFileData() {
+        return get(Field.FILEDATA);
+    }
+
+    /**
+     * The base64 file data as bytes. A received message is read straight
+     * from the bytes it arrived in, on the heap or mapped, so the data is
+     * never copied into a String; base64 has no characters a line escapes.
+     */
+    public InputStream openFileData() {
+        ByteBuffer bytes = raw;
+        int start = rangeStart(Field.FILEDATA);
+        if (bytes == null || start < 0) {
+            return new ByteArrayInputStream(getFileData().getBytes(StandardCharsets.ISO_8859_1));
+        }
+        ByteBuffer data = bytes.duplicate();
+        data.limit(rangeEnd(Field.FILEDATA)).position(start);
+        return new BufferInput(data);
+    }
+
+    /** Name to mood of every user in a {@link Type#ROSTER}, in the order the server listed them. */
+    public Map<String, String> getRoster() {
+        String body = getBody();
+        Map<String, String> moods = new LinkedHashMap<>();
+        int[] pos = {0};
+        while (pos[0] < body.length()) {
+            String name = readText(body, pos);
+            moods.put(name, readText(body, pos));
+        }
+        return moods;
+    }
+
+    /** The changes of a {@link Type#PRESENCE} delta, in the order they happened. */
+    public List<PresenceChange> getPresenceChanges() {
+        String body = getBody();
+        List<PresenceChange> changes = new ArrayList<>();
+        int[] pos = {0};
+        while (pos[0] < body.length()) {
+            char code = body.charAt(pos[0]++);
+            String name = readText(body, pos);
+            changes.add(PresenceChange.of(code, name, readText(body, pos)));
+        }
+        return changes;
+    }
+
+    /** The presence version of a roster or delta, -1 when it has none. */
+    public long getVersion() {
+        String seq = get(Field.SEQ);
+        return seq.isEmpty() ? -1 : Long.parseLong(seq);
+    }
+
+    private static void appendText(StringBuilder body, String text) {
+        if (text == null) {
+            text = "";
+        }
+        body.append(text.length()).append(':').append(text);
+    }
+
+    /** Reads a text written by {@link #appendText} at {@code pos[0]} and moves it past it. */
+    private static String readText(String body, int[] pos) {
+        int colon = body.indexOf(':', pos[0]);
+        if (colon < 0) {
+            throw new IllegalArgumentException("truncated " + body);
+        }
+        int start = colon + 1;
+        int end = start + Integer.parseInt(body, pos[0], colon, 10);
+        pos[0] = end;
+        return body.substring(start, end);
+    }
+
+    public boolean isFramesRequest() {
+        return "1".equals(get(Field.FRAMES));
+    }
+
+    /**
+     * Lists, in a join, the newer message types this client understands. A
+     * server sends those only to clients that list them; the others get the
+     * messages older clients know instead.
+     */
+    public Message accepting(Type... types) {
+        StringBuilder list = new StringBuilder();
+        for (Type type : types) {
+            if (list.length() > 0) {
+                list.append(',');
+            }
+            list.append(type.wireName);
+        }
+        return set(Field.ACCEPTS, list.toString());
+    }
+
+    /** Whether a join lists {@code type} among the types its client understands. */
+    public boolean accepts(Type type) {
+        for (String name : get(Field.ACCEPTS).split(",")) {
+            if (name.trim().equals(type.wireName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Serialized XML line (without the newline); cached, and reused as-is for a parsed message. */
+    public String toXml() {
+        String result = xml;
+        if (result == null) {
+            if (rawFormat == WireFormat.LINE && raw != null) {
+                result = decode(raw, 0, raw.limit() - 1);
+            } else {
+                result = MessageCodec.write(this);
+            }
+            xml = result;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toXml();
+    }
+
+    String rawValue(Field field) {
+        return has(field) ? get(field) : null;
+    }
+
+    /** Every field's value by ordinal, null when absent; complete only for a message built locally, see {@link #rawBytes}. */
+    String[] values() {
+        return values;
+    }
+
+    void setParsed(Field field, String value) {
+        values[field.ordinal()] = value;
+    }
+
+    /** Notes where a field of the received bytes is; the first occurrence wins. */
+    void setRange(Field field, int start, int end) {
+        int i = field.ordinal() * 2;
+        if (ranges[i] < 0) {
+            ranges[i]     = start;
+            ranges[i + 1] = end;
+        }
+    }
+
+    /** The bytes this message was received as, if it was received in {@code format}. */
+    ByteBuffer raw(WireFormat format) {
+        return rawFormat == format ? raw : null;
+    }
+
+    /** The bytes this message was received as, or null when it was built locally. */
+    ByteBuffer rawBytes() {
+        return raw;
+    }
+
+    WireFormat rawFormat() {
+        return raw != null ? rawFormat : null;
+    }
+
+    int rangeStart(Field field) {
+        return raw != null ? ranges[field.ordinal() * 2] : -1;
+    }
+
+    int rangeEnd(Field field) {
+        return ranges[field.ordinal() * 2 + 1];
+    }
+
+    void setXml(String xml) {
+        this.xml = xml;
+    }
+
+    static String decode(ByteBuffer bytes, int start, int end) {
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + start, end - start, StandardCharsets.UTF_8);
+        }
+        return new String(copy(bytes, start, end), StandardCharsets.UTF_8);
+    }
+
+    static byte[] copy(ByteBuffer bytes, int start, int end) {
+        byte[] copy = new byte[end - start];
+        bytes.get(start, copy);
+        return copy;
+    }
+
+    private static final class BufferInput extends InputStream {
+        private final ByteBuffer data;
+
+        BufferInput(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return data.hasRemaining() ? data.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, data.remaining());
+            data.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return data.remaining();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package shared;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Cuts a byte stream into messages of either wire format with bounded heap
+ * use. A message larger than the memory budget is written to a temp file as
+ * it arrives and handed out memory-mapped, so it never sits on the heap; a
+ * message larger than the maximum size is skipped without being stored.
+ * Used by {@link MessageReader} for blocking streams and fed directly by the
+ * server's NIO transport.
+ */
+public class MessageAssembler {
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 64 << 20;
+    public static final int DEFAULT_MEMORY_BUDGET    = 1 << 20;
+
+    /** Told about messages that did not fit into the memory budget. */
+    public interface Listener {
+        /** A message of {@code size} bytes was read through a temp file. */
+        void onSpilled(long size);
+
+        /** A message of {@code size} bytes was over the maximum and skipped. */
+        void onRejected(long size);
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+        @Override
+        public void onSpilled(long size) {
+        }
+
+        @Override
+        public void onRejected(long size) {
+        }
+    };
+
+    private final int maxMessageSize;
+    private final int memoryBudget;
+    private final Listener listener;
+    private volatile WireFormat format = WireFormat.LINE;
+
+    /** Size of the message read so far, counted also while spilling or skipping. */
+    private long size;
+    private boolean skipping;
+    private FileChannel spill;
+
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private boolean lineEndsWithCr;
+
+    private final byte[] header = new byte[FrameCodec.HEADER_SIZE];
+    private int headerLength;
+    private byte[] frame;
+    private long frameRemaining;
+
+    public MessageAssembler() {
+        this(DEFAULT_MAX_MESSAGE_SIZE, DEFAULT_MEMORY_BUDGET, NO_LISTENER);
+    }
+
+    public MessageAssembler(int maxMessageSize, int memoryBudget, Listener listener) {
+        this.maxMessageSize = maxMessageSize;
+        this.memoryBudget   = memoryBudget;
+        this.listener       = listener;
+    }
+
+    /** Takes effect from the next message on; call it only between messages. */
+    public void setFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Consumes bytes from {@code src} until a message is complete and returns
+     * it; bytes after it stay in {@code src}. Returns null when {@code src}
+     * ran out first.
+     */
+    public Message next(ByteBuffer src) throws IOException {
+        return format == WireFormat.FRAME ? nextFrame(src) : nextLine(src);
+    }
+
+    /** The stream has ended: returns an unterminated last line, if any. */
+    public Message finish() throws IOException {
+        if (format == WireFormat.FRAME) {
+            if (headerLength > 0) {
+                reset();
+                throw new EOFException("Connection closed inside a frame");
+            }
+            return null;
+        }
+        return size > 0 || skipping ? completeLine() : null;
+    }
+
+    /** Drops a partly read message, deleting its temp file. */
+    public void reset() {
+        closeSpill();
+        size = 0;
+        skipping = false;
+        lineLength = 0;
+        lineEndsWithCr = false;
+        headerLength = 0;
+        frame = null;
+    }
+
+    private Message nextLine(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            int start = src.position();
+            int end = start;
+            while (end < src.limit() && src.get(end) != '\n') {
+                end++;
+            }
+            appendLine(src, end - start);
+            if (end == src.limit()) {
+                return null;
+            }
+            src.get();
+            Message message = completeLine();
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private void appendLine(ByteBuffer src, int n) throws IOException {
+        if (n == 0) {
+            return;
+        }
+        size += n;
+        lineEndsWithCr = src.get(src.position() + n - 1) == '\r';
+        if (!skipping && size > maxMessageSize) {
+            skipping = true;
+            closeSpill();
+            lineLength = 0;
+        }
+        if (skipping) {
+            src.position(src.position() + n);
+            return;
+        }
+        if (spill == null && size + 1 > memoryBudget) {
+            openSpill();
+            write(ByteBuffer.wrap(line, 0, lineLength), lineLength);
+            lineLength = 0;
+        }
+        if (spill != null) {
+            write(src, n);
+        } else {
+            ensureLineCapacity(lineLength + n + 1);
+            src.get(line, lineLength, n);
+            lineLength += n;
+        }
+    }
+
+    private Message completeLine() throws IOException {
+        long total = size;
+        boolean endsWithCr = lineEndsWithCr;
+        size = 0;
+        lineEndsWithCr = false;
+        if (skipping) {
+            skipping = false;
+            listener.onRejected(total);
+            return null;
+        }
+        if (spill != null) {
+            if (endsWithCr) {
+                spill.truncate(spill.size() - 1);
+            }
+            write(ByteBuffer.wrap(new byte[] {'\n'}), 1);
+            ByteBuffer mapped = mapSpill();
+            listener.onSpilled(mapped.limit());
+            return MessageCodec.parse(mapped);
+        }
+        int length = lineLength > 0 && endsWithCr ? lineLength - 1 : lineLength;
+        lineLength = 0;
+        byte[] complete = Arrays.copyOf(line, length + 1);
+        complete[length] = '\n';
+        return MessageCodec.parse(ByteBuffer.wrap(complete));
+    }
+
+    private Message nextFrame(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (headerLength < FrameCodec.HEADER_SIZE) {
+                int n = Math.min(FrameCodec.HEADER_SIZE - headerLength, src.remaining());
+                src.get(header, headerLength, n);
+                headerLength += n;
+                if (headerLength < FrameCodec.HEADER_SIZE) {
+                    return null;
+                }
+                frameRemaining = FrameCodec.payloadLength(header, 0);
+                size = FrameCodec.HEADER_SIZE + frameRemaining;
+                if (size > maxMessageSize) {
+                    skipping = true;
+                } else if (size > memoryBudget) {
+                    openSpill();
+                    write(ByteBuffer.wrap(header), header.length);
+                } else {
+                    frame = Arrays.copyOf(header, (int) size);
+                }
+            }
+
+            int n = (int) Math.min(frameRemaining, src.remaining());
+            if (skipping) {
+                src.position(src.position() + n);
+            } else if (spill != null) {
+                write(src, n);
+            } else {
+                src.get(frame, (int) (size - frameRemaining), n);
+            }
+            frameRemaining -= n;
+
+            if (frameRemaining == 0) {
+                Message message = completeFrame();
+                if (message != null) {
+                    return message;
+                }
+            }
+        }
+        return null;
+    }
+
+    private Message completeFrame() throws IOException {
+        long total = size;
+        size = 0;
+        headerLength = 0;
+        if (skipping) {
+            skipping = false;
+            listener.onRejected(total);
+            return null;
+        }
+        if (spill != null) {
+            ByteBuffer mapped = mapSpill();
+            listener.onSpilled(total);
+            return FrameCodec.decode(mapped);
+        }
+        byte[] complete = frame;
+        frame = null;
+        return FrameCodec.decode(ByteBuffer.wrap(complete));
+    }
+
+    private void openSpill() throws IOException {
+        spill = FileChannel.open(Files.createTempFile("pathtoyou-", ".msg"),
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    private void write(ByteBuffer src, int n) throws IOException {
+        ByteBuffer part = src.duplicate();
+        part.limit(part.position() + n);
+        while (part.hasRemaining()) {
+            spill.write(part);
+        }
+        src.position(src.position() + n);
+    }
+
+    // the mapping stays valid after the file is closed (and, where the OS allows, deleted)
+    private ByteBuffer mapSpill() throws IOException {
+        FileChannel channel = spill;
+        spill = null;
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void closeSpill() {
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                System.err.println("Error: " + e.getMessage());
+            }
+            spill = null;
+        }
+    }
+
+    private void ensureLineCapacity(int capacity) {
+        if (capacity > line.length) {
+            line = Arrays.copyOf(line, Math.max(capacity, Math.min(line.length * 2, memoryBudget)));
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package shared;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * XML line codec for {@link Message}. Parsing walks the line once, left to
+ * right, and picks up every field on the way; escaping and unescaping copy
+ * unchanged runs of characters in bulk instead of chaining replace calls.
+ * Received lines are parsed straight from their bytes; see {@link Message}.
+ */
+public final class MessageCodec {
+    private static final Message.Field[] FIELDS = Message.Field.values();
+    // one bit per Field.code, for the shapes write() knows by heart
+    private static final int FROM = 1 << 1, TO = 1 << 2, BODY = 1 << 3, MOOD = 1 << 4, FILENAME = 1 << 5, FILEDATA = 1 << 6;
+    private static final byte[] TYPE_ATTRIBUTE = "type=\"".getBytes(StandardCharsets.US_ASCII);
+
+    private MessageCodec() {
+    }
+
+    public static Message parse(String xml) {
+        int length = xml.length();
+        String typeName = "";
+        int pos = xml.indexOf("type=\"");
+        if (pos >= 0) {
+            int start = pos + 6;
+            int end = xml.indexOf('"', start);
+            if (end > start) {
+                typeName = xml.substring(start, end);
+            }
+            pos = end >= 0 ? end : length;
+        } else {
+            pos = 0;
+        }
+
+        Message message = new Message(Message.Type.byName(typeName), typeName);
+
+        // skip the rest of the <message ...> tag
+        int rootEnd = xml.indexOf('>', pos);
+        pos = rootEnd >= 0 ? rootEnd + 1 : length;
+
+        while (pos < length) {
+            int open = xml.indexOf('<', pos);
+            if (open < 0 || open + 1 >= length || xml.charAt(open + 1) == '/') {
+                break;
+            }
+            int nameEnd = xml.indexOf('>', open + 1);
+            if (nameEnd < 0) {
+                break;
+            }
+            // values are escaped, so the next '<' starts the closing tag
+            int contentEnd = xml.indexOf('<', nameEnd + 1);
+            if (contentEnd < 0) {
+                break;
+            }
+            Message.Field field = Message.Field.byTag(xml, open + 1, nameEnd);
+            if (field != null && !message.has(field)) {
+                message.setParsed(field, unescape(xml, nameEnd + 1, contentEnd));
+            }
+            int closeEnd = xml.indexOf('>', contentEnd);
+            if (closeEnd < 0) {
+                break;
+            }
+            pos = closeEnd + 1;
+        }
+
+        message.setXml(xml);
+        return message;
+    }
+
+    /**
+     * Parses a received line; {@code line} ends with '\n' and becomes the
+     * message's raw bytes. Only the type is decoded here, fields are located.
+     */
+    public static Message parse(ByteBuffer line) {
+        int length = line.limit() - 1;
+        String typeName = "";
+        int pos = indexOf(line, TYPE_ATTRIBUTE, 0, length);
+        if (pos >= 0) {
+            int start = pos + TYPE_ATTRIBUTE.length;
+            int end = indexOf(line, (byte) '"', start, length);
+            if (end > start) {
+                typeName = Message.decode(line, start, end);
+            }
+            pos = end >= 0 ? end : length;
+        } else {
+            pos = 0;
+        }
+
+        Message message = new Message(Message.Type.byName(typeName), typeName, line, WireFormat.LINE);
+
+        int rootEnd = indexOf(line, (byte) '>', pos, length);
+        pos = rootEnd >= 0 ? rootEnd + 1 : length;
+
+        while (pos < length) {
+            int open = indexOf(line, (byte) '<', pos, length);
+            if (open < 0 || open + 1 >= length || line.get(open + 1) == '/') {
+                break;
+            }
+            int nameEnd = indexOf(line, (byte) '>', open + 1, length);
+            if (nameEnd < 0) {
+                break;
+            }
+            int contentEnd = indexOf(line, (byte) '<', nameEnd + 1, length);
+            if (contentEnd < 0) {
+                break;
+            }
+            Message.Field field = Message.Field.byTag(line, open + 1, nameEnd);
+            if (field != null) {
+                message.setRange(field, nameEnd + 1, contentEnd);
+            }
+            int closeEnd = indexOf(line, (byte) '>', contentEnd, length);
+            if (closeEnd < 0) {
+                break;
+            }
+            pos = closeEnd + 1;
+        }
+        return message;
+    }
+
+    /**
+     * The message as a line, newline included. A message received as a line
+     * is returned as received; one received as a frame has its field bytes
+     * escaped straight into the line, without decoding them to strings.
+     */
+    public static ByteBuffer encodeLine(Message message) {
+        ByteBuffer line = message.raw(WireFormat.LINE);
+        if (line != null) {
+            return line;
+        }
+        if (message.rawFormat() != WireFormat.FRAME) {
+            return ByteBuffer.wrap((message.toXml() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        ByteBuffer frame = message.rawBytes();
+        byte[] typeName = message.getTypeName().getBytes(StandardCharsets.UTF_8);
+        int size = 28 + typeName.length;
+        for (Message.Field field : FIELDS) {
+            int start = message.rangeStart(field);
+            if (start >= 0) {
+                size += 2 * field.tag.length() + 5 + escapedSize(frame, start, message.rangeEnd(field));
+            }
+        }
+
+        byte[] out = new byte[size];
+        int pos = put(out, 0, "<message type=\"");
+        System.arraycopy(typeName, 0, out, pos, typeName.length);
+        pos = put(out, pos + typeName.length, "\">");
+        for (Message.Field field : FIELDS) {
+            int start = message.rangeStart(field);
+            if (start >= 0) {
+                pos = put(out, pos, field.open);
+                pos = putEscaped(out, pos, frame, start, message.rangeEnd(field));
+                pos = put(out, pos, field.close);
+            }
+        }
+        put(out, pos, "</message>\n");
+        return ByteBuffer.wrap(out);
+    }
+
+    /**
+     * Chat messages come in a handful of shapes, and each is written with
+     * one string concatenation of constant tags and the escaped values, as
+     * the old hand-written builder did: it sizes the result exactly and picks
+     * Latin-1 or UTF-16 up front, where a StringBuilder grows, widens itself
+     * at the first non-Latin-1 char and copies everything again in toString.
+     */
+    static String write(Message message) {
+        if (message.rawBytes() != null || message.getType() == Message.Type.UNKNOWN) {
+            return writeAny(message);
+        }
+        String[] values = message.values();
+        int shape = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                shape |= 1 << FIELDS[i].code;
+            }
+        }
+        String head = message.getType().head;
+        String from = values[Message.Field.FROM.ordinal()];
+        String to   = values[Message.Field.TO.ordinal()];
+        String body = values[Message.Field.BODY.ordinal()];
+        switch (shape) {
+            case FROM:
+                return head + "<from>" + escape(from) + "</from></message>";
+            case FROM | MOOD:
+                return head + "<from>" + escape(from) + "</from><mood>"
+                        + escape(values[Message.Field.MOOD.ordinal()]) + "</mood></message>";
+            case FROM | BODY:
+                return head + "<from>" + escape(from) + "</from><body>" + escape(body) + "</body></message>";
+            case FROM | TO | BODY:
+                return head + "<from>" + escape(from) + "</from><to>" + escape(to)
+                        + "</to><body>" + escape(body) + "</body></message>";
+            case FROM | TO | FILENAME | FILEDATA:
+                return head + "<from>" + escape(from) + "</from><to>" + escape(to)
+                        + "</to><filename>" + escape(values[Message.Field.FILENAME.ordinal()])
+                        + "</filename><filedata>" + escape(values[Message.Field.FILEDATA.ordinal()])
+                        + "</filedata></message>";
+            default:
+                return writeAny(message);
+        }
+    }
+
+    private static String writeAny(Message message) {
+        int capacity = 32 + message.getTypeName().length();
+        for (Message.Field field : FIELDS) {
+            String value = message.rawValue(field);
+            if (value != null) {
+                capacity += value.length() + 2 * field.tag.length() + 5;
+            }
+        }
+
+        StringBuilder xml = new StringBuilder(capacity);
+        xml.append("<message type=\"").append(message.getTypeName()).append("\">");
+        for (Message.Field field : FIELDS) {
+            String value = message.rawValue(field);
+            if (value != null) {
+                xml.append(field.open);
+                escapeTo(xml, value);
+                xml.append(field.close);
+            }
+        }
+        return xml.append("</message>").toString();
+    }
+
+    public static String escape(String text) {
+        if (text == null) {
+            return "";
+        }
+        if (text.indexOf('&') < 0 && text.indexOf('<') < 0 && text.indexOf('>') < 0) {
+            return text;
+        }
+        StringBuilder out = new StringBuilder(text.length() + 16);
+        escapeTo(out, text);
+        return out.toString();
+    }
+
+    public static String unescape(String text) {
+        return text == null ? "" : unescape(text, 0, text.length());
+    }
+
+    /**
+     * Appends {@code text} escaped, copying the runs between special
+     * characters in bulk. The next '&amp;', '&lt;' and '&gt;' are found with
+     * {@link String#indexOf(int, int)}, which is much faster than testing
+     * every char, and each is looked up again only after it was consumed.
+     */
+    static void escapeTo(StringBuilder out, String text) {
+        int amp = next(text, '&', 0);
+        int lt  = next(text, '<', 0);
+        int gt  = next(text, '>', 0);
+        int run = 0;
+        while (true) {
+            int i = Math.min(amp, Math.min(lt, gt));
+            if (i == Integer.MAX_VALUE) {
+                break;
+            }
+            out.append(text, run, i);
+            run = i + 1;
+            if (i == amp) {
+                out.append("&amp;");
+                amp = next(text, '&', run);
+            } else if (i == lt) {
+                out.append("&lt;");
+                lt = next(text, '<', run);
+            } else {
+                out.append("&gt;");
+                gt = next(text, '>', run);
+            }
+        }
+        if (run == 0) {
+            out.append(text);
+        } else {
+            out.append(text, run, text.length());
+        }
+    }
+
+    private static int next(String text, char c, int from) {
+        int i = text.indexOf(c, from);
+        return i >= 0 ? i : Integer.MAX_VALUE;
+    }
+
+    static String unescape(String text, int from, int to) {
+        StringBuilder out = null;
+        int run = from;
+        int i = text.indexOf('&', from);
+        while (i >= 0 && i < to) {
+            char c = 0;
+            int entityLength = 0;
+            if (text.startsWith("amp;", i + 1)) {
+                c = '&';
+                entityLength = 5;
+            } else if (text.startsWith("lt;", i + 1)) {
+                c = '<';
+                entityLength = 4;
+            } else if (text.startsWith("gt;", i + 1)) {
+                c = '>';
+                entityLength = 4;
+            }
+            if (entityLength > 0 && i + entityLength <= to) {
+                if (out == null) {
+                    out = new StringBuilder(to - from);
+                }
+                out.append(text, run, i).append(c);
+                run = i + entityLength;
+            }
+            i = text.indexOf('&', Math.max(run, i + 1));
+        }
+        if (out == null) {
+            return text.substring(from, to);
+        }
+        return out.append(text, run, to).toString();
+    }
+
+    private static int indexOf(ByteBuffer bytes, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(ByteBuffer bytes, byte[] pattern, int from, int to) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes.get(i + j) != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int escapedSize(ByteBuffer bytes, int from, int to) {
+        int size = to - from;
+        for (int i = from; i < to; i++) {
+            byte b = bytes.get(i);
+            if (b == '&') {
+                size += 4;
+            } else if (b == '<' || b == '>') {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    // '&', '<' and '>' never occur inside a multi-byte UTF-8 sequence, so bytes can be escaped directly
+    private static int putEscaped(byte[] out, int pos, ByteBuffer bytes, int from, int to) {
+        int run = from;
+        for (int i = from; i < to; i++) {
+            byte b = bytes.get(i);
+            if (b != '&' && b != '<' && b != '>') {
+                continue;
+            }
+            bytes.get(run, out, pos, i - run);
+            pos = put(out, pos + i - run, b == '&' ? "&amp;" : b == '<' ? "&lt;" : "&gt;");
+            run = i + 1;
+        }
+        bytes.get(run, out, pos, to - run);
+        return pos + to - run;
+    }
+
+    private static int put(byte[] out, int pos, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            out[pos++] = (byte) ascii.charAt(i);
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,58 @@
+package shared;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads messages from a socket stream in either wire format. Bytes buffered
+ * past the current message stay usable by both formats (unlike with a
+ * BufferedReader), so the format can be switched between two messages.
+ * How much of a message may be held on the heap is up to the
+ * {@link MessageAssembler}.
+ */
+public class MessageReader {
+    private final InputStream in;
+    private final MessageAssembler assembler;
+    private final ByteBuffer chunk = ByteBuffer.allocate(8192).limit(0);
+
+    public MessageReader(InputStream in) {
+        this(in, new MessageAssembler());
+    }
+
+    public MessageReader(InputStream in, MessageAssembler assembler) {
+        this.in        = in;
+        this.assembler = assembler;
+    }
+
+    public void setFormat(WireFormat format) {
+        assembler.setFormat(format);
+    }
+
+    public WireFormat getFormat() {
+        return assembler.getFormat();
+    }
+
+    /** Next message, or null when the stream has ended. */
+    public Message readMessage() throws IOException {
+        while (true) {
+            if (!chunk.hasRemaining()) {
+                int n = in.read(chunk.array());
+                if (n < 0) {
+                    chunk.limit(0);
+                    return assembler.finish();
+                }
+                chunk.position(0).limit(n);
+            }
+            Message message = assembler.next(chunk);
+            if (message != null) {
+                return message;
+            }
+        }
+    }
+
+    /** Drops a partly read message; the stream itself is left open. */
+    public void reset() {
+        assembler.reset();
+    }
+}
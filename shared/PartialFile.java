@@ -0,0 +1,190 @@
+package shared;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.zip.CRC32C;
+
+/**
+ * A file received in chunks of {@link #CHUNK_SIZE} bytes, in any order, that
+ * outlives the connection it arrives on. Which chunks are on disk is kept
+ * next to it in a ".progress" file, so a later transfer of the same content
+ * carries on from {@link #resumeOffset()} instead of from byte 0. Chunks are
+ * checked against their CRC32C before they are written.
+ */
+public final class PartialFile {
+    /** Size of every chunk of a transfer but the last. */
+    public static final int CHUNK_SIZE = 48 * 1024;
+
+    /** Chunks written between two saves of the progress; more are only re-sent after a crash. */
+    private static final int SAVE_EVERY = 32;
+
+    private final Path path;
+    private final Path progressPath;
+    private final long size;
+    private final long chunkCount;
+    private final BitSet received;
+    private final FileChannel channel;
+    private int unsaved;
+
+    private PartialFile(Path path, Path progressPath, long size, BitSet received, FileChannel channel) {
+        this.path         = path;
+        this.progressPath = progressPath;
+        this.size         = size;
+        this.chunkCount   = chunkCount(size);
+        this.received     = received;
+        this.channel      = channel;
+    }
+
+    /** Opens the partial file at {@code path}, keeping the chunks already there if it was started for the same size. */
+    public static PartialFile open(Path path, long size) throws IOException {
+        if (size < 0 || chunkCount(size) > Integer.MAX_VALUE) {
+            throw new IOException("bad file size " + size);
+        }
+        Path progressPath = path.resolveSibling(path.getFileName() + ".progress");
+        BitSet received = new BitSet();
+        if (Files.exists(path) && Files.exists(progressPath)) {
+            ByteBuffer saved = ByteBuffer.wrap(Files.readAllBytes(progressPath));
+            if (saved.remaining() >= Long.BYTES && saved.getLong() == size) {
+                received = BitSet.valueOf(saved);
+            }
+        }
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.truncate(size);
+        return new PartialFile(path, progressPath, size, received, channel);
+    }
+
+    /** Whether {@code name} is a hex SHA-256, which is safe to use as a file name. */
+    public static boolean isHash(String name) {
+        if (name.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public static long chunkCount(long size) {
+        return (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    public static long crc(byte[] data, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    /** Hex SHA-256 of a whole file, read in chunks. */
+    public static String sha256(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return sha256(channel);
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /** Writes chunk {@code seq} if it matches {@code crc}; returns false, writing nothing, if it does not. */
+    public boolean write(long seq, byte[] data, long crc) throws IOException {
+        if (crc(data, 0, data.length) != crc) {
+            return false;
+        }
+        write(seq, data, data.length);
+        return true;
+    }
+
+    public void write(long seq, byte[] data, int length) throws IOException {
+        if (seq < 0 || seq >= chunkCount || length != Math.min(CHUNK_SIZE, size - seq * CHUNK_SIZE)) {
+            throw new IOException("chunk " + seq + " does not fit a file of " + size + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        long position = seq * CHUNK_SIZE;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        received.set((int) seq);
+        if (++unsaved >= SAVE_EVERY) {
+            saveProgress();
+        }
+    }
+
+    /** Where the sender has to continue from: the start of the first missing chunk, or the size when none is. */
+    public long resumeOffset() {
+        return Math.min(size, (long) received.nextClearBit(0) * CHUNK_SIZE);
+    }
+
+    /** Bytes on disk so far, for showing progress. */
+    public long receivedBytes() {
+        return Math.min(size, (long) received.cardinality() * CHUNK_SIZE);
+    }
+
+    public boolean isComplete() {
+        return received.nextClearBit(0) >= chunkCount;
+    }
+
+    /** Hex SHA-256 of what is on disk; call it once the file is complete. */
+    public String hash() throws IOException {
+        return sha256(channel);
+    }
+
+    /** Closes the file and keeps it with its progress for a later transfer. */
+    public void suspend() throws IOException {
+        try {
+            saveProgress();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** Closes the finished file and moves it to {@code target}. */
+    public void moveTo(Path target) throws IOException {
+        channel.close();
+        Files.move(path, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(progressPath);
+    }
+
+    public void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(progressPath);
+    }
+
+    private void saveProgress() throws IOException {
+        byte[] bits = received.toByteArray();
+        ByteBuffer saved = ByteBuffer.allocate(Long.BYTES + bits.length).putLong(size).put(bits);
+        Files.write(progressPath, saved.array());
+        unsaved = 0;
+    }
+
+    private static String sha256(FileChannel channel) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = 0;
+        int n;
+        while ((n = channel.read(buffer, position)) > 0) {
+            position += n;
+            digest.update(buffer.flip());
+            buffer.clear();
+        }
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+}
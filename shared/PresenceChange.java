@@ -0,0 +1,83 @@
+package shared;
+
+/**
+ * One entry of a {@link Message.Type#PRESENCE} delta: a user who is online
+ * now, with the mood they have now, one who has left, or one who has been
+ * renamed. Only the latest state of each user is sent, not every step that
+ * led to it.
+ */
+public final class PresenceChange {
+
+    public enum Kind {
+        ONLINE('+'),
+        OFFLINE('-'),
+        RENAMED('>');
+
+        final char code;
+
+        Kind(char code) {
+            this.code = code;
+        }
+
+        static Kind byCode(char code) {
+            for (Kind kind : values()) {
+                if (kind.code == code) {
+                    return kind;
+                }
+            }
+            throw new IllegalArgumentException("unknown presence change '" + code + "'");
+        }
+    }
+
+    private final Kind kind;
+    private final String name;
+    private final String value;
+
+    private PresenceChange(Kind kind, String name, String value) {
+        this.kind  = kind;
+        this.name  = name;
+        this.value = value != null ? value : "";
+    }
+
+    public static PresenceChange online(String name, String mood) {
+        return new PresenceChange(Kind.ONLINE, name, mood);
+    }
+
+    public static PresenceChange offline(String name) {
+        return new PresenceChange(Kind.OFFLINE, name, "");
+    }
+
+    public static PresenceChange renamed(String oldName, String newName) {
+        return new PresenceChange(Kind.RENAMED, oldName, newName);
+    }
+
+    static PresenceChange of(char code, String name, String value) {
+        return new PresenceChange(Kind.byCode(code), name, value);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /** The user; for {@link Kind#RENAMED} the name before. */
+    public String getName() {
+        return name;
+    }
+
+    /** Mood for {@link Kind#ONLINE}, the new name for {@link Kind#RENAMED}. */
+    public String getMood() {
+        return value;
+    }
+
+    public String getNewName() {
+        return value;
+    }
+
+    char code() {
+        return kind.code;
+    }
+
+    String value() {
+        return value;
+    }
+}
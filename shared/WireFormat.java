@@ -0,0 +1,9 @@
+package shared;
+
+/** How messages are delimited on a connection. */
+public enum WireFormat {
+    /** One XML document per line; what every client speaks before negotiating. */
+    LINE,
+    /** Length-prefixed binary frames, see {@link FrameCodec}. */
+    FRAME
+}
@@ -1,112 +1,87 @@
 package shared;
 
+/**
+ * String-based facade over {@link Message} and {@link MessageCodec}. Each
+ * parse call scans the whole line; code that needs several fields should
+ * parse once with {@link MessageCodec#parse} and read them from the Message.
+ */
 public class XMLMessageBuilder {
 
     public static String buildJoinMessage(String sender, String mood) {
-        return "<message type=\"join\"><from>" + escape(sender) + "</from><mood>" + escape(mood) + "</mood></message>";
+        return Message.join(sender, mood).toXml();
+    }
+
+    /** Join that also asks the server to switch this connection to binary frames. */
+    public static String buildJoinMessage(String sender, String mood, boolean binaryFrames) {
+        return (binaryFrames ? Message.joinWithFrames(sender, mood) : Message.join(sender, mood)).toXml();
+    }
+
+    /** Last line the server sends before switching the connection to binary frames. */
+    public static String buildFramesAcceptedMessage() {
+        return Message.framesAccepted().toXml();
     }
 
     public static String buildLeaveMessage(String sender) {
-        return "<message type=\"leave\"><from>" + escape(sender) + "</from></message>";
+        return Message.leave(sender).toXml();
     }
 
     public static String buildBroadcastMessage(String sender, String body) {
-        return "<message type=\"broadcast\"><from>" + escape(sender) + "</from><body>" + escape(body) + "</body></message>";
+        return Message.broadcast(sender, body).toXml();
     }
 
     public static String buildPrivateMessage(String sender, String receiver, String body) {
-        return "<message type=\"private\"><from>" + escape(sender) + "</from><to>" + escape(receiver) + "</to><body>" + escape(body) + "</body></message>";
+        return Message.privateMessage(sender, receiver, body).toXml();
     }
 
    public static String buildHugMessage(String sender, String receiver) {
-        String body = sender + " надіслав обійми 🤗 до " + receiver;
-        return "<message type=\"hug\"><from>" + escape(sender) + "</from><to>" + escape(receiver) + "</to><body>" + escape(body) + "</body></message>";
+        return Message.hug(sender, receiver).toXml();
     }
 
    public static String buildRenameMessage(String oldName, String newName) {
-        return "<message type=\"rename\"><from>" + escape(oldName) + "</from><body>" + escape(oldName + "=>" + newName) + "</body></message>";
+        return Message.rename(oldName, newName).toXml();
     }
 
    public static String buildMoodChangeMessage(String sender, String mood) {
-        return "<message type=\"mood\"><from>" + escape(sender) + "</from><mood>" + escape(mood) + "</mood></message>";
+        return Message.mood(sender, mood).toXml();
     }
 
     public static String buildFileMessage(String sender, String receiver, String filename, String filedata) {
-        return "<message type=\"file\">" +
-                   "<from>" + escape(sender) + "</from>" +
-                   "<to>" + escape(receiver) + "</to>" +
-                   "<filename>" + escape(filename) + "</filename>" +
-                   "<filedata>" + escape(filedata) + "</filedata>" +
-               "</message>";
+        return Message.file(sender, receiver, filename, filedata).toXml();
     }
 
    public static String buildEmotionMessage(String sender, String receiver, String emoji) {
-        return "<message type=\"emotion\">" +
-                   "<from>" + escape(sender) + "</from>" +
-                   "<to>" + escape(receiver) + "</to>" +
-                   "<body>" + escape(emoji) + "</body>" +
-               "</message>";
+        return Message.emotion(sender, receiver, emoji).toXml();
     }
 
    public static String parseType(String xml) {
-        return parseAttributeValue(xml, "type");
+        return MessageCodec.parse(xml).getTypeName();
     }
 
    public static String parseSender(String xml) {
-        return parseTagContent(xml, "from");
+        return MessageCodec.parse(xml).getFrom();
     }
 
     public static String parseReceiver(String xml) {
-        return parseTagContent(xml, "to");
+        return MessageCodec.parse(xml).getTo();
     }
 
    public static String parseBody(String xml) {
-        return parseTagContent(xml, "body");
+        return MessageCodec.parse(xml).getBody();
     }
 
    public static String parseMood(String xml) {
-        return parseTagContent(xml, "mood");
+        return MessageCodec.parse(xml).getMood();
     }
 
    public static String parseFileName(String xml) {
-        return parseTagContent(xml, "filename");
+        return MessageCodec.parse(xml).getFileName();
     }
 
    public static String parseFileContent(String xml) {
-        return parseTagContent(xml, "filedata");
-    }
-
-    private static String parseAttributeValue(String xml, String attribute) {
-        String start = attribute + "=\"";
-        int startIndex = xml.indexOf(start);
-        if (startIndex >= 0) {
-            int valueStart = startIndex + start.length();
-            int valueEnd = xml.indexOf("\"", valueStart);
-            if (valueEnd > valueStart) {
-                return xml.substring(valueStart, valueEnd);
-            }
-        }
-        return "";
-    }
-
-    private static String parseTagContent(String xml, String tag) {
-        String startTag = "<" + tag + ">";
-        String endTag = "</" + tag + ">";
-        int start = xml.indexOf(startTag);
-        int end = xml.indexOf(endTag);
-        if (start >= 0 && end > start) {
-            return unescape(xml.substring(start + startTag.length(), end));
-        }
-        return "";
-    }
-
-    private static String escape(String text) {
-        if (text == null) return "";
-        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        return MessageCodec.parse(xml).getFileData();
     }
 
-    private static String unescape(String text) {
-        if (text == null) return "";
-        return text.replace("&amp;", "&").replace("&lt;", "<").replace("&gt;", ">");
+    public static boolean parseFramesRequest(String xml) {
+        return MessageCodec.parse(xml).isFramesRequest();
     }
 }